@@ -25,16 +25,16 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import jp.realglobe.android.logger.simple.Log;
 import jp.realglobe.android.uploader.video.FFmpegHelper;
+import jp.realglobe.android.uploader.video.FFmpegOutputProfile;
 import jp.realglobe.android.uploader.video.FFmpegRtmpUploader;
+import jp.realglobe.android.uploader.video.MappedVideoSource;
 import jp.realglobe.android.util.BaseActivity;
 
 public class MainActivity extends BaseActivity {
@@ -42,8 +42,10 @@ public class MainActivity extends BaseActivity {
     private static final String TAG = MainActivity.class.getName();
 
     private static final long QUEUE_CAPACITY = 1 << 22; // 4MB
-    private static final int DATA_SIZE = (1_000 << 10) / 8; // 1000Kb
-    private static final long READ_INTERVAL = 10; // ミリ秒
+    private static final long QUEUE_LATENCY = 3_000; // ミリ秒
+    private static final long READ_INTERVAL = 33; // ミリ秒。1 アクセスユニットずつ約 30fps で送る
+    private static final long DRAIN_TIMEOUT = 5_000; // ミリ秒
+    private static final String FFMPEG_ASSET_ROOT = "ffmpeg";
 
     private static final String[] PERMISSIONS = new String[]{
             Manifest.permission.INTERNET,
@@ -121,7 +123,7 @@ public class MainActivity extends BaseActivity {
 
 
     private void start() {
-        FFmpegHelper.asyncDownload(getString(R.string.ffmpeg_root_url), getDownloadDir(), false, 30_000, (File ffmpeg) -> {
+        FFmpegHelper.asyncPrepare(getApplicationContext(), FFMPEG_ASSET_ROOT, getString(R.string.ffmpeg_root_url), getDownloadDir(), false, 30_000, (File ffmpeg) -> {
             if (ffmpeg == null) {
                 showToast(getString(R.string.notification_no_ffmpeg));
                 this.buttonStart.setEnabled(true);
@@ -151,14 +153,14 @@ public class MainActivity extends BaseActivity {
         final Setting setting = Setting.load(getApplicationContext());
 
         this.uploader = new FFmpegRtmpUploader();
-        this.uploader.start(ffmpeg, setting.getUploadUrl(), (Exception e) -> runOnUiThread(() -> {
+        this.uploader.startWithLatency(ffmpeg, setting.getUploadUrl(), FFmpegOutputProfile.COPY, (Exception e) -> runOnUiThread(() -> {
             Log.e(TAG, "Error occurred", e);
             this.uploader.stop();
             this.buttonStart.setEnabled(true);
-        }), QUEUE_CAPACITY);
+        }), QUEUE_LATENCY, QUEUE_CAPACITY);
 
-        final InputStream input = new BufferedInputStream(new FileInputStream(setting.getVideoPath()));
-        final byte[] buff = new byte[DATA_SIZE];
+        // 大きなファイルでもヒープに読み込まずに送る
+        final MappedVideoSource input = new MappedVideoSource(new File(setting.getVideoPath()));
         final Runnable step = new Runnable() {
             @Override
             public void run() {
@@ -170,14 +172,15 @@ public class MainActivity extends BaseActivity {
                         return;
                     }
 
-                    final int size = input.read(buff);
-                    if (size <= 0) {
+                    final ByteBuffer accessUnit = input.next();
+                    if (accessUnit == null) {
                         input.close();
-                        activity.uploader.stop();
+                        // 最後まで送り切る
+                        activity.uploader.stop(DRAIN_TIMEOUT);
                         activity.buttonStart.post(() -> activity.buttonStart.setEnabled(true));
                         return;
                     }
-                    if (activity.uploader.sendVideo(Arrays.copyOf(buff, size))) {
+                    if (activity.uploader.sendVideo(accessUnit)) {
                         Log.w(TAG, "Video buffer was cleared");
                         runOnUiThread(() -> showToast(getString(R.string.notification_buffer_clear)));
                     }
@@ -0,0 +1,74 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import jp.realglobe.android.logger.simple.Log;
+
+import static org.junit.Assume.assumeNotNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 同梱した FFmpeg の展開とダウンロードにかかる時間を比べる。
+ * アセットに ffmpeg/{CPUアーキテクチャ}/ffmpeg.gz が無ければ展開は測らない。
+ * ダウンロードは実行引数 ffmpegRootUrl でダウンロード元を指定したときだけ測る
+ */
+@RunWith(AndroidJUnit4.class)
+public class FFmpegHelperBenchmark {
+
+    private static final String TAG = FFmpegHelperBenchmark.class.getName();
+
+    private static final String ASSET_ROOT = "ffmpeg";
+    private static final int TIMEOUT = 30_000; // ミリ秒
+
+    @Test
+    public void extract() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final File saveDir = new File(context.getCacheDir(), "extract");
+
+        final long start = SystemClock.elapsedRealtime();
+        final File ffmpeg = FFmpegHelper.extract(context, ASSET_ROOT, saveDir, true);
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        assumeNotNull(ffmpeg);
+
+        Log.i(TAG, "Extracting " + ffmpeg.length() + " bytes took " + elapsed + "ms");
+    }
+
+    @Test
+    public void download() throws Exception {
+        final String urlRoot = InstrumentationRegistry.getArguments().getString("ffmpegRootUrl");
+        assumeTrue(urlRoot != null && !urlRoot.isEmpty());
+        final File saveDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "download");
+
+        final long start = SystemClock.elapsedRealtime();
+        final File ffmpeg = FFmpegHelper.download(urlRoot, saveDir, true, TIMEOUT);
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        assumeNotNull(ffmpeg);
+
+        Log.i(TAG, "Downloading " + ffmpeg.length() + " bytes took " + elapsed + "ms");
+    }
+
+}
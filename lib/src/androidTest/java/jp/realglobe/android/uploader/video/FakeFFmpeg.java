@@ -0,0 +1,77 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+
+/**
+ * テスト用の FFmpeg の代わり。
+ * シェルに渡す引数を作る。{@link PipedFFmpegRunner} に {@link #SHELL} とこの引数を渡して使う
+ */
+final class FakeFFmpeg {
+
+    static final File SHELL = new File("/system/bin/sh");
+
+    private FakeFFmpeg() {
+    }
+
+    /**
+     * @return 入力をすぐに捨てる
+     */
+    @NonNull
+    static String[] sink() {
+        return script("cat > /dev/null");
+    }
+
+    /**
+     * @param blockSize 一度に読むバイト数
+     * @param interval  読む間隔（秒）
+     * @return 入力を少しずつしか読まない
+     */
+    @NonNull
+    static String[] throttle(int blockSize, double interval) {
+        return script("while dd of=/dev/null bs=" + blockSize + " count=1 2>/dev/null; do sleep " + interval + "; done");
+    }
+
+    /**
+     * @param stall 読まない時間（秒）
+     * @return しばらく読まずに、その後は入力をすぐに捨てる
+     */
+    @NonNull
+    static String[] stallThenSink(double stall) {
+        return script("sleep " + stall + "; cat > /dev/null");
+    }
+
+    /**
+     * @param kiloBytes 終了するまでに読む量（KB）
+     * @param status    終了コード
+     * @param message   終了前にエラー出力に書く行
+     * @return 入力を少し読んだら終了する
+     */
+    @NonNull
+    static String[] dieAfter(int kiloBytes, int status, @NonNull String message) {
+        return script("dd of=/dev/null bs=1024 count=" + kiloBytes + " 2>/dev/null; echo '" + message + "' >&2; exit " + status);
+    }
+
+    @NonNull
+    private static String[] script(@NonNull String script) {
+        return new String[]{"-c", script};
+    }
+
+}
@@ -0,0 +1,502 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.realglobe.android.logger.simple.Log;
+
+/**
+ * テスト用の RTMP サーバーの代わり。
+ * ハンドシェイクと connect, createStream, publish への応答だけを行い、送られてきた FLV タグを数えて捨てる。
+ * 読み込む速さを絞って、遅い送信先を再現できる
+ */
+final class LocalRtmpServer implements Closeable {
+
+    private static final String TAG = LocalRtmpServer.class.getName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int DEFAULT_CHUNK_SIZE = 128;
+    private static final int STREAM_ID = 1;
+    private static final long CLOSE_TIMEOUT = 5_000L;
+
+    // メッセージの種類
+    private static final int TYPE_SET_CHUNK_SIZE = 1;
+    private static final int TYPE_WINDOW_ACK_SIZE = 5;
+    private static final int TYPE_SET_PEER_BANDWIDTH = 6;
+    private static final int TYPE_AUDIO = 8;
+    private static final int TYPE_VIDEO = 9;
+    private static final int TYPE_DATA = 18;
+    private static final int TYPE_COMMAND = 20;
+
+    // AMF0 の型
+    private static final int AMF_NUMBER = 0x00;
+    private static final int AMF_BOOLEAN = 0x01;
+    private static final int AMF_STRING = 0x02;
+    private static final int AMF_OBJECT = 0x03;
+    private static final int AMF_NULL = 0x05;
+
+    /**
+     * チャンクストリームごとの受信途中のメッセージ
+     */
+    private static final class ChunkStream {
+
+        private long timestamp;
+        private int length;
+        private int type;
+        private int streamId;
+        private boolean extended;
+        private ByteArrayOutputStream payload;
+
+    }
+
+    private final ServerSocket server;
+    private final Thread acceptor;
+
+    private final AtomicInteger audioTags;
+    private final AtomicInteger videoTags;
+    private final AtomicInteger dataTags;
+    private final AtomicLong mediaSize;
+    private final CountDownLatch published;
+
+    /**
+     * 1 秒あたりに読み込むバイト数。0 以下なら絞らない
+     */
+    private volatile long readRate;
+
+    /**
+     * 接続中のクライアント。閉じるときに読み込みを止めるために持っておく
+     */
+    private volatile Socket client;
+
+    /**
+     * @throws IOException ポートを開けなかった
+     */
+    LocalRtmpServer() throws IOException {
+        this.server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        this.audioTags = new AtomicInteger(0);
+        this.videoTags = new AtomicInteger(0);
+        this.dataTags = new AtomicInteger(0);
+        this.mediaSize = new AtomicLong(0L);
+        this.published = new CountDownLatch(1);
+        this.readRate = 0L;
+
+        this.acceptor = new Thread(() -> {
+            while (!this.server.isClosed()) {
+                try (final Socket socket = this.server.accept()) {
+                    this.client = socket;
+                    if (this.server.isClosed()) {
+                        // close() が接続を見る前に受け付けてしまった
+                        break;
+                    }
+                    serve(socket);
+                } catch (EOFException e) {
+                    Log.v(TAG, "Client disconnected");
+                } catch (IOException e) {
+                    if (!this.server.isClosed()) {
+                        Log.w(TAG, "Serving failed", e);
+                    }
+                }
+            }
+        }, TAG);
+        this.acceptor.start();
+    }
+
+    /**
+     * @param stream ストリーム名
+     * @return 配信先 URL
+     */
+    @NonNull
+    String getUrl(@NonNull String stream) {
+        return "rtmp://127.0.0.1:" + this.server.getLocalPort() + "/live/" + stream;
+    }
+
+    /**
+     * 読み込む速さを絞る
+     *
+     * @param readRate 1 秒あたりに読み込むバイト数。0 以下なら絞らない
+     */
+    void setReadRate(long readRate) {
+        this.readRate = readRate;
+    }
+
+    /**
+     * publish されるまで待つ
+     *
+     * @param timeout 待つ時間（ミリ秒）
+     * @return publish されたら true
+     */
+    boolean awaitPublish(long timeout) throws InterruptedException {
+        return this.published.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    int getAudioTags() {
+        return this.audioTags.get();
+    }
+
+    int getVideoTags() {
+        return this.videoTags.get();
+    }
+
+    int getDataTags() {
+        return this.dataTags.get();
+    }
+
+    /**
+     * @return 受け取った FLV タグの中身の合計バイト数
+     */
+    long getMediaSize() {
+        return this.mediaSize.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.server.close();
+        final Socket socket = this.client;
+        if (socket != null) {
+            // 読み込みで止まっている受け付けスレッドを起こす
+            socket.close();
+        }
+        try {
+            this.acceptor.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.acceptor.isAlive()) {
+            Log.w(TAG, "Acceptor did not stop in " + CLOSE_TIMEOUT + " ms");
+        }
+    }
+
+    private void serve(@NonNull Socket socket) throws IOException {
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new ThrottledInputStream(socket.getInputStream())));
+        final OutputStream output = socket.getOutputStream();
+
+        handshake(input, output);
+
+        final Map<Integer, ChunkStream> chunkStreams = new HashMap<>();
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        while (true) {
+            final int basic = input.readUnsignedByte();
+            final int format = basic >>> 6;
+            int id = basic & 0x3f;
+            if (id == 0) {
+                id = 64 + input.readUnsignedByte();
+            } else if (id == 1) {
+                id = 64 + input.readUnsignedByte() + 256 * input.readUnsignedByte();
+            }
+
+            ChunkStream chunkStream = chunkStreams.get(id);
+            if (chunkStream == null) {
+                chunkStream = new ChunkStream();
+                chunkStreams.put(id, chunkStream);
+            }
+            if (format <= 2) {
+                long timestamp = readUnsigned(input, 3);
+                if (format <= 1) {
+                    chunkStream.length = (int) readUnsigned(input, 3);
+                    chunkStream.type = input.readUnsignedByte();
+                    if (format == 0) {
+                        chunkStream.streamId = Integer.reverseBytes(input.readInt());
+                    }
+                }
+                chunkStream.extended = (timestamp == 0xffffff);
+                if (chunkStream.extended) {
+                    timestamp = input.readInt() & 0xffffffffL;
+                }
+                chunkStream.timestamp = (format == 0) ? timestamp : chunkStream.timestamp + timestamp;
+            } else if (chunkStream.extended) {
+                input.readInt();
+            }
+
+            if (chunkStream.payload == null) {
+                chunkStream.payload = new ByteArrayOutputStream(chunkStream.length);
+            }
+            final int size = Math.min(chunkSize, chunkStream.length - chunkStream.payload.size());
+            final byte[] buff = new byte[size];
+            input.readFully(buff);
+            chunkStream.payload.write(buff);
+            if (chunkStream.payload.size() < chunkStream.length) {
+                continue;
+            }
+
+            final byte[] message = chunkStream.payload.toByteArray();
+            chunkStream.payload = null;
+            switch (chunkStream.type) {
+                case TYPE_SET_CHUNK_SIZE:
+                    chunkSize = (int) readUnsigned(message, 0, 4) & 0x7fffffff;
+                    break;
+                case TYPE_AUDIO:
+                    this.audioTags.incrementAndGet();
+                    this.mediaSize.addAndGet(message.length);
+                    break;
+                case TYPE_VIDEO:
+                    this.videoTags.incrementAndGet();
+                    this.mediaSize.addAndGet(message.length);
+                    break;
+                case TYPE_DATA:
+                    this.dataTags.incrementAndGet();
+                    break;
+                case TYPE_COMMAND:
+                    onCommand(output, message);
+                    break;
+                default:
+                    // 確認応答などは無視する
+                    break;
+            }
+        }
+    }
+
+    private static void handshake(@NonNull DataInputStream input, @NonNull OutputStream output) throws IOException {
+        final int version = input.readUnsignedByte();
+        if (version != 3) {
+            throw new IOException("unsupported RTMP version " + version);
+        }
+        final byte[] c1 = new byte[HANDSHAKE_SIZE];
+        input.readFully(c1);
+
+        final byte[] s1 = new byte[HANDSHAKE_SIZE];
+        new Random().nextBytes(s1);
+        for (int i = 0; i < 8; i++) {
+            // 時刻とゼロ
+            s1[i] = 0;
+        }
+        output.write(3);
+        output.write(s1);
+        output.write(c1);
+        output.flush();
+
+        input.readFully(new byte[HANDSHAKE_SIZE]);
+    }
+
+    private void onCommand(@NonNull OutputStream output, @NonNull byte[] message) throws IOException {
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(message));
+        final Object name = readAmf(input);
+        final Object transaction = readAmf(input);
+        Log.v(TAG, "Received command " + name);
+        if (!(transaction instanceof Double)) {
+            return;
+        }
+        final double transactionId = (Double) transaction;
+
+        final ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        if ("connect".equals(name)) {
+            writeMessage(output, 2, TYPE_WINDOW_ACK_SIZE, 0, new byte[]{0x00, 0x26, 0x25, (byte) 0xa0});
+            writeMessage(output, 2, TYPE_SET_PEER_BANDWIDTH, 0, new byte[]{0x00, 0x26, 0x25, (byte) 0xa0, 2});
+            writeAmfString(reply, "_result");
+            writeAmfNumber(reply, transactionId);
+            writeAmfObject(reply, new Object[]{"fmsVer", "FMS/3,0,1,123", "capabilities", 31.0});
+            writeAmfObject(reply, new Object[]{"level", "status", "code", "NetConnection.Connect.Success", "description", "Connection succeeded.", "objectEncoding", 0.0});
+            writeMessage(output, 3, TYPE_COMMAND, 0, reply.toByteArray());
+        } else if ("createStream".equals(name)) {
+            writeAmfString(reply, "_result");
+            writeAmfNumber(reply, transactionId);
+            reply.write(AMF_NULL);
+            writeAmfNumber(reply, STREAM_ID);
+            writeMessage(output, 3, TYPE_COMMAND, 0, reply.toByteArray());
+        } else if ("publish".equals(name)) {
+            writeAmfString(reply, "onStatus");
+            writeAmfNumber(reply, 0);
+            reply.write(AMF_NULL);
+            writeAmfObject(reply, new Object[]{"level", "status", "code", "NetStream.Publish.Start", "description", "Start publishing."});
+            writeMessage(output, 5, TYPE_COMMAND, STREAM_ID, reply.toByteArray());
+            this.published.countDown();
+        }
+        // releaseStream, FCPublish などには応答しなくても FFmpeg は進む
+    }
+
+    /**
+     * 既定のチャンクサイズでメッセージを送る
+     */
+    private static void writeMessage(@NonNull OutputStream output, int chunkStreamId, int type, int streamId, @NonNull byte[] payload) throws IOException {
+        final ByteArrayOutputStream buff = new ByteArrayOutputStream();
+        buff.write(chunkStreamId);
+        writeUnsigned(buff, 0, 3);
+        writeUnsigned(buff, payload.length, 3);
+        buff.write(type);
+        writeUnsigned(buff, Integer.reverseBytes(streamId) & 0xffffffffL, 4);
+        for (int offset = 0; offset < payload.length; offset += DEFAULT_CHUNK_SIZE) {
+            if (offset > 0) {
+                buff.write(0xc0 | chunkStreamId);
+            }
+            buff.write(payload, offset, Math.min(DEFAULT_CHUNK_SIZE, payload.length - offset));
+        }
+        output.write(buff.toByteArray());
+        output.flush();
+    }
+
+    /**
+     * AMF0 の値を読む。文字列と数値と真偽値以外は読み飛ばして null を返す
+     */
+    @Nullable
+    private static Object readAmf(@NonNull DataInputStream input) throws IOException {
+        final int type = input.readUnsignedByte();
+        switch (type) {
+            case AMF_NUMBER:
+                return input.readDouble();
+            case AMF_BOOLEAN:
+                return input.readUnsignedByte() != 0;
+            case AMF_STRING:
+                return readAmfString(input);
+            case AMF_OBJECT:
+                while (true) {
+                    final String key = readAmfString(input);
+                    if (key.isEmpty()) {
+                        input.readUnsignedByte(); // オブジェクトの終わり
+                        return null;
+                    }
+                    readAmf(input);
+                }
+            default:
+                return null;
+        }
+    }
+
+    @NonNull
+    private static String readAmfString(@NonNull DataInputStream input) throws IOException {
+        final byte[] buff = new byte[input.readUnsignedShort()];
+        input.readFully(buff);
+        return new String(buff, UTF_8);
+    }
+
+    private static void writeAmfString(@NonNull ByteArrayOutputStream output, @NonNull String value) {
+        output.write(AMF_STRING);
+        writeRawString(output, value);
+    }
+
+    private static void writeRawString(@NonNull ByteArrayOutputStream output, @NonNull String value) {
+        final byte[] bytes = value.getBytes(UTF_8);
+        writeUnsigned(output, bytes.length, 2);
+        output.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeAmfNumber(@NonNull ByteArrayOutputStream output, double value) {
+        output.write(AMF_NUMBER);
+        writeUnsigned(output, Double.doubleToLongBits(value), 8);
+    }
+
+    /**
+     * @param entries キーと値を交互に並べたもの。値は文字列か数値
+     */
+    private static void writeAmfObject(@NonNull ByteArrayOutputStream output, @NonNull Object[] entries) {
+        output.write(AMF_OBJECT);
+        for (int i = 0; i + 1 < entries.length; i += 2) {
+            writeRawString(output, (String) entries[i]);
+            final Object value = entries[i + 1];
+            if (value instanceof Double) {
+                writeAmfNumber(output, (Double) value);
+            } else {
+                writeAmfString(output, (String) value);
+            }
+        }
+        writeUnsigned(output, 0, 2);
+        output.write(0x09);
+    }
+
+    private static long readUnsigned(@NonNull DataInputStream input, int length) throws IOException {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | input.readUnsignedByte();
+        }
+        return value;
+    }
+
+    private static long readUnsigned(@NonNull byte[] buff, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (buff[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void writeUnsigned(@NonNull ByteArrayOutputStream output, long value, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            output.write((int) (value >>> (8 * i)));
+        }
+    }
+
+    /**
+     * 読み込む速さを {@link #readRate} に絞る
+     */
+    private final class ThrottledInputStream extends InputStream {
+
+        private static final int MAX_READ = 4 << 10; // 4KB
+
+        private final InputStream base;
+        private final long start;
+        private long total;
+
+        private ThrottledInputStream(@NonNull InputStream base) {
+            this.base = base;
+            this.start = System.nanoTime();
+            this.total = 0L;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] buff = new byte[1];
+            return read(buff, 0, 1) < 0 ? -1 : buff[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buff, int offset, int length) throws IOException {
+            final long rate = LocalRtmpServer.this.readRate;
+            if (rate > 0) {
+                length = Math.min(length, MAX_READ);
+                final long due = this.total * 1_000 / rate - (System.nanoTime() - this.start) / 1_000_000;
+                if (due > 0) {
+                    try {
+                        Thread.sleep(due);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted");
+                    }
+                }
+            }
+            final int read = this.base.read(buff, offset, length);
+            if (read > 0) {
+                this.total += read;
+            }
+            return read;
+        }
+
+    }
+
+}
@@ -0,0 +1,109 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.realglobe.android.logger.simple.Log;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 複数スレッドから書き込んだときの書き込み側の所要時間を測る。
+ * FFmpeg の代わりに入力を捨てるだけのシェルを使う
+ */
+@RunWith(AndroidJUnit4.class)
+public class PipedFFmpegRunnerBenchmark {
+
+    private static final String TAG = PipedFFmpegRunnerBenchmark.class.getName();
+
+    private static final File SHELL = new File("/system/bin/sh");
+    private static final String[] SINK_ARGS = new String[]{"-c", "cat > /dev/null"};
+
+    private static final int DATA_SIZE = 4 << 10; // 4KB
+    private static final int WRITES_PER_THREAD = 20_000;
+    private static final long CAPACITY = 1 << 24; // 16MB
+
+    @Test
+    public void contention() throws Exception {
+        for (int producers : new int[]{1, 2, 4, 8}) {
+            measure(producers);
+        }
+    }
+
+    private void measure(int producers) throws Exception {
+        final PipedFFmpegRunner runner = new PipedFFmpegRunner();
+        assertTrue(runner.start(SHELL, SINK_ARGS, null, CAPACITY));
+        try {
+            final CountDownLatch ready = new CountDownLatch(producers);
+            final CountDownLatch go = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(producers);
+            final AtomicLong totalNanos = new AtomicLong(0L);
+            final AtomicLong clears = new AtomicLong(0L);
+
+            for (int i = 0; i < producers; i++) {
+                new Thread(() -> {
+                    final byte[] data = new byte[DATA_SIZE];
+                    ready.countDown();
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    final long start = System.nanoTime();
+                    for (int j = 0; j < WRITES_PER_THREAD; j++) {
+                        if (runner.write(data)) {
+                            clears.incrementAndGet();
+                        }
+                    }
+                    totalNanos.addAndGet(System.nanoTime() - start);
+                    done.countDown();
+                }).start();
+            }
+
+            // 他のスレッドからの状態確認も混ぜる
+            final Thread poller = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    runner.isRunning();
+                    runner.getQueuedSize();
+                }
+            });
+            poller.start();
+
+            ready.await();
+            go.countDown();
+            done.await();
+            poller.interrupt();
+            poller.join();
+
+            final long writes = (long) producers * WRITES_PER_THREAD;
+            Log.i(TAG, producers + " producers: " + (totalNanos.get() / writes) + " ns/write, " + clears.get() + " clears");
+            assertTrue(runner.isRunning());
+        } finally {
+            runner.stop();
+        }
+    }
+
+}
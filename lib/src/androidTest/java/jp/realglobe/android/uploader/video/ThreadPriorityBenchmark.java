@@ -0,0 +1,107 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.os.Process;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.realglobe.android.logger.simple.Log;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CPU を奪い合う状況で、書き込みスレッドなどの優先度を変えたときのバッファのクリア回数を比べる。
+ * FFmpeg の代わりに入力を捨てるだけのシェルを使う
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThreadPriorityBenchmark {
+
+    private static final String TAG = ThreadPriorityBenchmark.class.getName();
+
+    private static final int DATA_SIZE = 16 << 10; // 16KB
+    private static final long WRITE_INTERVAL = 5;
+    private static final int WRITES = 1_000;
+    private static final long CAPACITY = 128 << 10; // 128KB
+
+    @Test
+    public void clearRate() throws Exception {
+        final List<Thread> spinners = startSpinners(2 * Runtime.getRuntime().availableProcessors());
+        try {
+            measure("default", Process.THREAD_PRIORITY_DEFAULT, Process.THREAD_PRIORITY_DEFAULT, 0);
+            measure("writer audio", Process.THREAD_PRIORITY_AUDIO, Process.THREAD_PRIORITY_DEFAULT, 0);
+            measure("writer audio, readers background", Process.THREAD_PRIORITY_AUDIO, Process.THREAD_PRIORITY_BACKGROUND, 0);
+            measure("writer display, readers background, ffmpeg nice", Process.THREAD_PRIORITY_URGENT_DISPLAY, Process.THREAD_PRIORITY_BACKGROUND, 5);
+        } finally {
+            for (Thread spinner : spinners) {
+                spinner.interrupt();
+            }
+            for (Thread spinner : spinners) {
+                spinner.join();
+            }
+        }
+    }
+
+    private void measure(String label, int writerPriority, int readerPriority, int nice) throws Exception {
+        final PipedFFmpegRunner runner = new PipedFFmpegRunner();
+        runner.setWriterPriority(writerPriority);
+        runner.setReaderPriority(readerPriority);
+        runner.setFFmpegNice(nice);
+        assertTrue(runner.start(FakeFFmpeg.SHELL, FakeFFmpeg.sink(), null, CAPACITY));
+        try {
+            final byte[] data = new byte[DATA_SIZE];
+            int clears = 0;
+            final long start = System.nanoTime();
+            for (int i = 0; i < WRITES; i++) {
+                if (runner.write(data)) {
+                    clears++;
+                }
+                Thread.sleep(WRITE_INTERVAL);
+            }
+            final long elapsed = (System.nanoTime() - start) / 1_000_000;
+            Log.i(TAG, label + ": " + clears + " clears in " + elapsed + "ms (" + (clears * 1_000.0 / elapsed) + " clears/s), stall " + runner.getWriteStallTime() + "ms");
+            assertTrue(runner.isRunning());
+        } finally {
+            runner.stop();
+        }
+    }
+
+    /**
+     * CPU を使い続けるだけのスレッドを動かす
+     */
+    private static List<Thread> startSpinners(int count) {
+        final List<Thread> spinners = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final Thread spinner = new Thread(() -> {
+                long x = 0;
+                while (!Thread.currentThread().isInterrupted()) {
+                    x = x * 31 + 1;
+                }
+                Log.v(TAG, "Spun " + x);
+            });
+            spinner.start();
+            spinners.add(spinner);
+        }
+        return spinners;
+    }
+
+}
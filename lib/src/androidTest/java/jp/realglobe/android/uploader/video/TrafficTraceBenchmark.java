@@ -0,0 +1,114 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import jp.realglobe.android.logger.simple.Log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 記録した送信を再生して、捨てられたデータ量や溜まり具合を比べる。
+ * 記録は合成した 30 fps の映像で作る。
+ * FFmpeg の代わりに入力を捨てるだけのシェルを使う
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrafficTraceBenchmark {
+
+    private static final String TAG = TrafficTraceBenchmark.class.getName();
+
+    private static final File SHELL = new File("/system/bin/sh");
+    private static final String[] SINK_ARGS = new String[]{"-c", "cat > /dev/null"};
+    /**
+     * 0.1 秒ごとに 1 回、4KB までしか読まない遅い送信先。
+     * head -c と違って dd は 1 回の read で止まるので、読み込み速度が 40KB/s を超えない
+     */
+    private static final String[] SLOW_SINK_ARGS = new String[]{"-c", "while true; do dd of=/dev/null bs=4096 count=1 2> /dev/null || exit; sleep 0.1; done"};
+
+    private static final int FRAMES = 150;
+    private static final long FRAME_INTERVAL = 33;
+    private static final int GOP = 30;
+    private static final int KEY_FRAME_SIZE = 60 << 10; // 60KB
+    private static final int FRAME_SIZE = 8 << 10; // 8KB
+    private static final long CAPACITY = 256 << 10; // 256KB
+
+    private static File trace;
+
+    @BeforeClass
+    public static void record() throws Exception {
+        trace = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "benchmark.trace");
+        try (final TrafficTraceRecorder recorder = new TrafficTraceRecorder(trace, false)) {
+            for (int i = 0; i < FRAMES; i++) {
+                final boolean key = (i % GOP == 0);
+                final ByteBuffer data = ByteBuffer.allocate(key ? KEY_FRAME_SIZE : FRAME_SIZE);
+                data.put(3, (byte) 1);
+                data.put(4, (byte) (key ? 0x65 : 0x41));
+                recorder.record(data);
+                Thread.sleep(FRAME_INTERVAL);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void deleteTrace() {
+        trace.delete();
+    }
+
+    @Test
+    public void fastSink() throws Exception {
+        for (double speed : new double[]{1, 4}) {
+            final TrafficTraceReplayer.Report report = replay(SINK_ARGS, speed);
+            assertEquals(FRAMES, report.getRecords());
+            assertEquals(0, report.getDroppedSize());
+        }
+    }
+
+    @Test
+    public void slowSink() throws Exception {
+        final TrafficTraceReplayer.Report report = replay(SLOW_SINK_ARGS, 1);
+        assertEquals(FRAMES, report.getRecords());
+        // 約 290KB/s を送るので、パイプが詰まった後は溢れて捨てるはず
+        assertTrue(report.getClears() > 0);
+        assertTrue(report.getDroppedSize() > 0);
+        // 容量を確かめてから積むので、1 アクセスユニット分までははみ出し得る
+        assertTrue(report.getMaxQueuedSize() <= CAPACITY + KEY_FRAME_SIZE);
+    }
+
+    private TrafficTraceReplayer.Report replay(String[] sinkArgs, double speed) throws Exception {
+        final PipedFFmpegRunner runner = new PipedFFmpegRunner();
+        assertTrue(runner.start(SHELL, sinkArgs, null, CAPACITY));
+        try {
+            final TrafficTraceReplayer.Report report = new TrafficTraceReplayer(trace).replay(runner, speed);
+            Log.i(TAG, "speed " + speed + ": " + report);
+            return report;
+        } finally {
+            runner.stop();
+        }
+    }
+
+}
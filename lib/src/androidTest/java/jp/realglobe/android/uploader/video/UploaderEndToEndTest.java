@@ -0,0 +1,277 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jp.realglobe.android.logger.simple.Log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * アップロードを端末内で通しで動かして、捨てられるデータ量と遅延が範囲内に収まるかを確かめる。
+ * パイプ側はシェルで作った FFmpeg の代わりを、RTMP 側は {@link LocalRtmpServer} を使う。
+ * RTMP 側の試験には本物の FFmpeg が要る。
+ * インストルメンテーション引数 ffmpeg で指定するか、アプリに同梱されていなければ飛ばす
+ */
+@RunWith(AndroidJUnit4.class)
+public class UploaderEndToEndTest {
+
+    private static final String TAG = UploaderEndToEndTest.class.getName();
+
+    private static final long FRAME_INTERVAL = 33;
+    private static final int FRAME_SIZE = 16 << 10; // 16KB。約 4Mbps
+
+    /**
+     * 書き込み中の記録
+     */
+    private static final class Feed {
+
+        private long maxQueuedSize;
+        private long maxQueuedDuration;
+        private int clears;
+        /**
+         * 最後にクリアした時刻。クリアしてなければ -1
+         */
+        private long lastClear = -1L;
+
+    }
+
+    @Test
+    public void sustainedThroughput() throws Exception {
+        final PipedFFmpegRunner runner = new PipedFFmpegRunner();
+        assertTrue(runner.startWithLatency(FakeFFmpeg.SHELL, FakeFFmpeg.sink(), null, 1_000, 4 << 20));
+        try {
+            final Feed feed = feed(runner, 150, FRAME_SIZE);
+            assertEquals(0, feed.clears);
+            assertEquals(0, runner.getMetrics().getDroppedSize());
+            assertTrue("queued " + feed.maxQueuedDuration + "ms", feed.maxQueuedDuration <= 200);
+
+            final DrainResult result = runner.stop(2_000);
+            assertNotNull(result);
+            assertTrue(result.isClean());
+        } finally {
+            runner.stop();
+        }
+    }
+
+    @Test
+    public void stallAndRecover() throws Exception {
+        final long capacity = 256 << 10; // 256KB
+        final PipedFFmpegRunner runner = new PipedFFmpegRunner();
+        assertTrue(runner.start(FakeFFmpeg.SHELL, FakeFFmpeg.stallThenSink(2), null, capacity));
+        try {
+            final long start = SystemClock.elapsedRealtime();
+            final Feed feed = feed(runner, 150, FRAME_SIZE);
+
+            // 止まっている間だけ捨てる
+            assertTrue(feed.clears >= 1);
+            assertTrue("last clear at " + (feed.lastClear - start) + "ms", feed.lastClear - start < 3_000);
+            final long dropped = runner.getMetrics().getDroppedSize();
+            assertTrue("dropped " + dropped, dropped <= 3 * FRAME_SIZE * 1_000 / FRAME_INTERVAL);
+            assertTrue(runner.getQueuedSize() <= capacity);
+            assertTrue(runner.isRunning());
+        } finally {
+            runner.stop();
+        }
+    }
+
+    @Test
+    public void slowConsumer() throws Exception {
+        final long maxLatency = 1_000;
+        final long maxCapacity = 1 << 20; // 1MB
+        final PipedFFmpegRunner runner = new PipedFFmpegRunner();
+        // 約 160KB/s しか読まない
+        assertTrue(runner.startWithLatency(FakeFFmpeg.SHELL, FakeFFmpeg.throttle(16 << 10, 0.1), null, maxLatency, maxCapacity));
+        try {
+            final Feed feed = feed(runner, 180, FRAME_SIZE);
+
+            // 溢れる分は捨てて、溜まる量は上限に収める
+            assertTrue(feed.clears >= 1);
+            assertTrue("queued " + feed.maxQueuedSize + " bytes", feed.maxQueuedSize <= maxCapacity + FRAME_SIZE);
+            final UploaderMetrics metrics = runner.getMetrics();
+            assertTrue(metrics.getDrainedSize() > 0);
+            assertTrue(metrics.getDroppedSize() < metrics.getInputSize());
+            assertTrue(runner.isRunning());
+        } finally {
+            runner.stop();
+        }
+    }
+
+    @Test
+    public void dieOnCue() throws Exception {
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final CountDownLatch failed = new CountDownLatch(1);
+        final PipedFFmpegRunner runner = new PipedFFmpegRunner();
+        assertTrue(runner.start(FakeFFmpeg.SHELL, FakeFFmpeg.dieAfter(64, 3, "Connection refused"), e -> {
+            error.set(e);
+            failed.countDown();
+        }, 1 << 20));
+        try {
+            feed(runner, 30, FRAME_SIZE);
+            assertTrue(failed.await(3, TimeUnit.SECONDS));
+            assertTrue(error.get() instanceof FFmpegExitException);
+            final FFmpegExitException exit = (FFmpegExitException) error.get();
+            assertEquals(3, exit.getExitStatus());
+            assertTrue(exit.getDetectionLatency() < 1_000);
+            // エラー出力は終了の検知と並行して読むので少し待つ
+            final long deadline = SystemClock.elapsedRealtime() + 1_000;
+            while (!runner.getDiagnosticLines().contains("Connection refused") && SystemClock.elapsedRealtime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(runner.getDiagnosticLines().contains("Connection refused"));
+        } finally {
+            runner.stop();
+        }
+    }
+
+    @Test
+    public void rtmpSustainedThroughput() throws Exception {
+        final File ffmpeg = findFFmpeg();
+        final File video = makeSampleVideo(ffmpeg, 90);
+        try (final LocalRtmpServer server = new LocalRtmpServer()) {
+            final FFmpegRtmpUploader uploader = new FFmpegRtmpUploader();
+            assertTrue(uploader.startWithLatency(ffmpeg, server.getUrl("sustained"), FFmpegOutputProfile.COPY, null, 3_000, 4 << 20));
+            try {
+                final int frames = feed(uploader, video);
+                final DrainResult result = uploader.stop(5_000);
+                assertNotNull(result);
+                assertTrue(result.isClean());
+
+                assertTrue(server.awaitPublish(0));
+                assertEquals(0, uploader.getMetrics().getDroppedSize());
+                // FFmpeg が最後の数フレームを送り終える前に止めることがある
+                assertTrue("received " + server.getVideoTags() + " of " + frames, server.getVideoTags() >= frames - 5);
+                assertTrue(server.getDataTags() >= 1);
+            } finally {
+                uploader.stop();
+            }
+        } finally {
+            video.delete();
+        }
+    }
+
+    @Test
+    public void rtmpSlowConsumer() throws Exception {
+        final File ffmpeg = findFFmpeg();
+        final File video = makeSampleVideo(ffmpeg, 150);
+        final long maxCapacity = 256 << 10; // 256KB
+        try (final LocalRtmpServer server = new LocalRtmpServer()) {
+            server.setReadRate(4 << 10);
+            final FFmpegRtmpUploader uploader = new FFmpegRtmpUploader();
+            assertTrue(uploader.startWithLatency(ffmpeg, server.getUrl("slow"), FFmpegOutputProfile.COPY, null, 1_000, maxCapacity));
+            try {
+                feed(uploader, video);
+                final UploaderMetrics metrics = uploader.getMetrics();
+                Log.i(TAG, "Slow consumer: " + metrics);
+                assertTrue(metrics.getQueuedSize() <= maxCapacity);
+                assertTrue(uploader.isRunning());
+            } finally {
+                uploader.stop();
+            }
+        } finally {
+            video.delete();
+        }
+    }
+
+    /**
+     * 一定間隔で同じ大きさのデータを書き込む
+     */
+    private static Feed feed(PipedFFmpegRunner runner, int frames, int size) throws InterruptedException {
+        final Feed feed = new Feed();
+        final byte[] data = new byte[size];
+        for (int i = 0; i < frames; i++) {
+            if (runner.write(data)) {
+                feed.clears++;
+                feed.lastClear = SystemClock.elapsedRealtime();
+            }
+            feed.maxQueuedSize = Math.max(feed.maxQueuedSize, runner.getQueuedSize());
+            feed.maxQueuedDuration = Math.max(feed.maxQueuedDuration, runner.getQueuedDuration());
+            Thread.sleep(FRAME_INTERVAL);
+        }
+        Log.i(TAG, frames + " frames: " + runner.getMetrics() + ", max queued " + feed.maxQueuedSize + " bytes, " + feed.maxQueuedDuration + "ms");
+        return feed;
+    }
+
+    /**
+     * 映像ファイルをアクセスユニットごとに一定間隔で送る
+     *
+     * @return 送ったアクセスユニットの数
+     */
+    private static int feed(FFmpegRtmpUploader uploader, File video) throws Exception {
+        int frames = 0;
+        try (final MappedVideoSource source = new MappedVideoSource(video)) {
+            while (true) {
+                final ByteBuffer data = source.next();
+                if (data == null) {
+                    break;
+                }
+                uploader.sendVideo(data);
+                frames++;
+                Thread.sleep(FRAME_INTERVAL);
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * @return 本物の FFmpeg。無ければ試験を飛ばす
+     */
+    private static File findFFmpeg() {
+        final String path = InstrumentationRegistry.getArguments().getString("ffmpeg");
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final File ffmpeg = (path != null) ? new File(path) : FFmpegHelper.findInstalled(context);
+        assumeNotNull(ffmpeg);
+        assumeTrue(ffmpeg.canExecute());
+        return ffmpeg;
+    }
+
+    /**
+     * FFmpeg で合成映像を生の H264 として書き出す。
+     * H264 でエンコードできなければ試験を飛ばす
+     */
+    private static File makeSampleVideo(File ffmpeg, int frames) throws Exception {
+        final File video = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "sample.h264");
+        final Process process = new ProcessBuilder(ffmpeg.getAbsolutePath(), "-y", "-loglevel", "error",
+                "-f", "lavfi", "-i", "testsrc=size=320x240:rate=30", "-frames:v", String.valueOf(frames),
+                "-c:v", "libx264", "-g", "30", "-bsf:v", "h264_mp4toannexb", "-f", "h264", video.getAbsolutePath())
+                .redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        while (process.getInputStream().read() >= 0) {
+            // 出力は読み捨てる
+        }
+        assumeTrue("ffmpeg cannot encode H264", process.waitFor() == 0 && video.length() > 0);
+        return video;
+    }
+
+}
@@ -0,0 +1,349 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import jp.realglobe.android.logger.simple.Log;
+
+/**
+ * 生の H264（Annex B 形式）のファイル内のアクセスユニットの索引。
+ * 位置と大きさとキーフレームかどうかをプリミティブ型の配列で持つ。
+ * フレーム番号は配列の添え字で、時刻はフレームレートから計算する
+ */
+public final class AccessUnitIndex {
+
+    private static final String TAG = AccessUnitIndex.class.getName();
+
+    private static final String SIDECAR_SUFFIX = ".auidx";
+    private static final int MAGIC = 0x41554958; // AUIX
+    private static final int VERSION = 1;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    /**
+     * 索引ファイルのヘッダの大きさ
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4;
+
+    private final long sourceLength;
+    private final long sourceModified;
+    private final long[] offsets;
+    private final int[] sizes;
+    /**
+     * キーフレームのフレーム番号。昇順
+     */
+    private final int[] keyFrames;
+
+    private AccessUnitIndex(long sourceLength, long sourceModified, @NonNull long[] offsets, @NonNull int[] sizes, @NonNull int[] keyFrames) {
+        this.sourceLength = sourceLength;
+        this.sourceModified = sourceModified;
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.keyFrames = keyFrames;
+    }
+
+    /**
+     * @param video 映像ファイル
+     * @return 索引ファイルのパス
+     */
+    @NonNull
+    public static File getSidecar(@NonNull File video) {
+        return new File(video.getPath() + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * 索引ファイルがあれば読み込み、無いか古ければ作って保存する
+     *
+     * @param video 映像ファイル
+     * @return 索引
+     * @throws IOException 読み込みエラー
+     */
+    @NonNull
+    @WorkerThread
+    public static AccessUnitIndex open(@NonNull File video) throws IOException {
+        final File sidecar = getSidecar(video);
+        if (sidecar.exists()) {
+            try {
+                final AccessUnitIndex index = load(sidecar, video);
+                if (index != null) {
+                    return index;
+                }
+                Log.i(TAG, "Rebuilding stale index " + sidecar);
+            } catch (IOException e) {
+                Log.w(TAG, "Rebuilding broken index " + sidecar, e);
+            }
+        }
+
+        final AccessUnitIndex index = build(video);
+        try {
+            index.save(sidecar);
+        } catch (IOException e) {
+            // 保存できなくても索引は使える
+            Log.w(TAG, "Saving index to " + sidecar + " failed", e);
+        }
+        return index;
+    }
+
+    /**
+     * 映像ファイルを先頭から一度だけ走査して索引を作る
+     *
+     * @param video 映像ファイル
+     * @return 索引
+     * @throws IOException 読み込みエラー
+     */
+    @NonNull
+    @WorkerThread
+    public static AccessUnitIndex build(@NonNull File video) throws IOException {
+        final long modified = video.lastModified();
+        long[] offsets = new long[INITIAL_CAPACITY];
+        int[] sizes = new int[INITIAL_CAPACITY];
+        int[] keyFrames = new int[INITIAL_CAPACITY];
+        int count = 0;
+        int keyCount = 0;
+
+        final long start = System.currentTimeMillis();
+        final long length;
+        try (final MappedVideoSource source = new MappedVideoSource(video)) {
+            length = source.size();
+            long position = 0;
+            while (position < length) {
+                final long end = source.findAccessUnitEnd(position);
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, 2 * count);
+                    sizes = Arrays.copyOf(sizes, 2 * count);
+                }
+                if (source.isKeyFrame()) {
+                    if (keyCount == keyFrames.length) {
+                        keyFrames = Arrays.copyOf(keyFrames, 2 * keyCount);
+                    }
+                    keyFrames[keyCount++] = count;
+                }
+                offsets[count] = position;
+                sizes[count] = (int) (end - position);
+                count++;
+                position = end;
+            }
+        }
+        Log.i(TAG, "Indexed " + count + " access units of " + video + " in " + (System.currentTimeMillis() - start) + "ms");
+
+        return new AccessUnitIndex(length, modified, Arrays.copyOf(offsets, count), Arrays.copyOf(sizes, count), Arrays.copyOf(keyFrames, keyCount));
+    }
+
+    /**
+     * 索引ファイルを読み込む
+     *
+     * @param sidecar 索引ファイル
+     * @param video   映像ファイル
+     * @return 索引。形式が違うか、大きさが合わないか、映像ファイルが変わっていたら null
+     * @throws IOException 読み込みエラー
+     */
+    @Nullable
+    static AccessUnitIndex load(@NonNull File sidecar, @NonNull File video) throws IOException {
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return null;
+            }
+            final long length = input.readLong();
+            final long modified = input.readLong();
+            if (length != video.length() || modified != video.lastModified()) {
+                return null;
+            }
+
+            final int count = input.readInt();
+            final int keyCount = input.readInt();
+            if (count < 0 || keyCount < 0 || keyCount > count
+                    || sidecar.length() != HEADER_SIZE + 12L * count + 4L * keyCount) {
+                // 壊れている
+                return null;
+            }
+            final long[] offsets = new long[count];
+            final int[] sizes = new int[count];
+            final int[] keyFrames = new int[keyCount];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = input.readLong();
+            }
+            for (int i = 0; i < count; i++) {
+                sizes[i] = input.readInt();
+            }
+            for (int i = 0; i < keyCount; i++) {
+                keyFrames[i] = input.readInt();
+            }
+            return new AccessUnitIndex(length, modified, offsets, sizes, keyFrames);
+        } catch (EOFException e) {
+            // 書きかけ
+            return null;
+        }
+    }
+
+    /**
+     * 索引ファイルとして保存する。
+     * 途中で失敗しても壊れた索引ファイルが残らないように、別名で書いてから置き換える
+     *
+     * @param sidecar 索引ファイル
+     * @throws IOException 書き込みエラー
+     */
+    @WorkerThread
+    public void save(@NonNull File sidecar) throws IOException {
+        final File tempPath = new File(sidecar.getPath() + ".tmp");
+        try {
+            write(tempPath);
+        } catch (IOException e) {
+            if (!tempPath.delete()) {
+                Log.w(TAG, "Cannot delete " + tempPath);
+            }
+            throw e;
+        }
+        if (!tempPath.renameTo(sidecar)) {
+            throw new IOException("cannot rename " + tempPath + " to " + sidecar);
+        }
+    }
+
+    private void write(@NonNull File path) throws IOException {
+        try (final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(this.sourceLength);
+            output.writeLong(this.sourceModified);
+            output.writeInt(this.offsets.length);
+            output.writeInt(this.keyFrames.length);
+            for (long offset : this.offsets) {
+                output.writeLong(offset);
+            }
+            for (int size : this.sizes) {
+                output.writeInt(size);
+            }
+            for (int keyFrame : this.keyFrames) {
+                output.writeInt(keyFrame);
+            }
+        }
+    }
+
+    /**
+     * @return アクセスユニットの数
+     */
+    public int size() {
+        return this.offsets.length;
+    }
+
+    /**
+     * @return キーフレームの数
+     */
+    public int getKeyFrameCount() {
+        return this.keyFrames.length;
+    }
+
+    /**
+     * @param frame フレーム番号
+     * @return ファイル内の位置
+     */
+    public long getOffset(int frame) {
+        return this.offsets[frame];
+    }
+
+    /**
+     * @param frame フレーム番号
+     * @return バイト数
+     */
+    public int getSize(int frame) {
+        return this.sizes[frame];
+    }
+
+    /**
+     * @param frame フレーム番号
+     * @return キーフレーム（IDR）なら true
+     */
+    public boolean isKeyFrame(int frame) {
+        return Arrays.binarySearch(this.keyFrames, frame) >= 0;
+    }
+
+    /**
+     * @param offset ファイル内の位置
+     * @return その位置を含むアクセスユニットのフレーム番号。範囲外なら -1
+     */
+    public int findFrame(long offset) {
+        if (offset < 0 || offset >= this.sourceLength || this.offsets.length == 0) {
+            return -1;
+        }
+        final int found = Arrays.binarySearch(this.offsets, offset);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    /**
+     * 指定したフレーム以前で一番近いキーフレームを探す。
+     * 以前に無ければ一番最初のキーフレームを返す
+     *
+     * @param frame フレーム番号
+     * @return キーフレームのフレーム番号。キーフレームが無ければ -1
+     */
+    public int findKeyFrame(int frame) {
+        if (this.keyFrames.length == 0) {
+            return -1;
+        }
+        final int found = Arrays.binarySearch(this.keyFrames, frame);
+        if (found >= 0) {
+            return this.keyFrames[found];
+        }
+        final int before = -found - 2;
+        return this.keyFrames[Math.max(0, before)];
+    }
+
+    /**
+     * 指定した時刻以前で一番近いキーフレームを探す
+     *
+     * @param time      先頭からの時刻（ミリ秒）
+     * @param frameRate フレームレート
+     * @return キーフレームのフレーム番号。キーフレームが無ければ -1
+     */
+    public int findKeyFrameAt(long time, double frameRate) {
+        final long frame = (long) Math.floor(time * frameRate / 1_000);
+        return findKeyFrame((int) Math.max(0L, Math.min(frame, this.offsets.length - 1)));
+    }
+
+    /**
+     * 最後の指定時間分を含むように、一番近いキーフレームを探す
+     *
+     * @param duration  最後から遡る時間（ミリ秒）
+     * @param frameRate フレームレート
+     * @return キーフレームのフレーム番号。キーフレームが無ければ -1
+     */
+    public int findKeyFrameForLast(long duration, double frameRate) {
+        final long frames = (long) Math.ceil(duration * frameRate / 1_000);
+        return findKeyFrame((int) Math.max(0L, this.offsets.length - frames));
+    }
+
+    /**
+     * @param frame     フレーム番号
+     * @param frameRate フレームレート
+     * @return 先頭からの時刻（ミリ秒）
+     */
+    public static long getTime(int frame, double frameRate) {
+        return (long) (frame * 1_000 / frameRate);
+    }
+
+}
@@ -0,0 +1,112 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 直近の一定時間に流れたデータ量からビットレートを見積もる。
+ * 時間を区切った枠ごとにバイト数を数え、古い枠は使い回す。
+ * ロックは使わない。枠を使い回す瞬間に別スレッドから足された分は取りこぼすことがある
+ */
+final class BitrateEstimator {
+
+    private final long bucketLength;
+    /**
+     * 枠ごとのバイト数
+     */
+    private final AtomicLongArray buckets;
+    /**
+     * 枠が今どの時間帯を数えているか
+     */
+    private final AtomicLongArray epochs;
+    /**
+     * 最初にデータが来た時刻
+     */
+    private final AtomicLong start;
+
+    /**
+     * @param window       見積もりに使う時間（ミリ秒）
+     * @param bucketLength 枠の長さ（ミリ秒）
+     */
+    BitrateEstimator(long window, long bucketLength) {
+        this.bucketLength = bucketLength;
+        final int length = (int) Math.max(1, window / bucketLength);
+        this.buckets = new AtomicLongArray(length);
+        this.epochs = new AtomicLongArray(length);
+        for (int i = 0; i < length; i++) {
+            this.epochs.set(i, -1L);
+        }
+        this.start = new AtomicLong(-1L);
+    }
+
+    /**
+     * データ量を足す
+     *
+     * @param now  現在時刻（ミリ秒）
+     * @param size データのバイト数
+     */
+    void add(long now, long size) {
+        this.start.compareAndSet(-1L, now);
+
+        final long epoch = now / this.bucketLength;
+        final int slot = (int) (epoch % this.buckets.length());
+        final long current = this.epochs.get(slot);
+        if (current > epoch) {
+            // 古すぎる
+            return;
+        } else if (current < epoch && this.epochs.compareAndSet(slot, current, epoch)) {
+            this.buckets.set(slot, 0L);
+        }
+        this.buckets.addAndGet(slot, size);
+    }
+
+    /**
+     * @param now 現在時刻（ミリ秒）
+     * @return 見積もったビットレート（bps）。データが来てなければ 0
+     */
+    long getBitrate(long now) {
+        final long first = this.start.get();
+        if (first < 0) {
+            return 0;
+        }
+
+        final long epoch = now / this.bucketLength;
+        final int length = this.buckets.length();
+        long sum = 0;
+        for (int i = 0; i < length; i++) {
+            final long bucketEpoch = this.epochs.get(i);
+            if (bucketEpoch > epoch - length && bucketEpoch <= epoch) {
+                sum += this.buckets.get(i);
+            }
+        }
+        // 見積もり開始直後は経過時間で割る
+        final long span = Math.min(now - first + this.bucketLength, length * this.bucketLength);
+        return sum * 8 * 1_000 / Math.max(1, span);
+    }
+
+    /**
+     * @param now 現在時刻（ミリ秒）
+     * @return 見積もりに使う時間分のデータが溜まったら true
+     */
+    boolean isWarm(long now) {
+        final long first = this.start.get();
+        return first >= 0 && now - first >= this.buckets.length() * this.bucketLength;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.Nullable;
+
+/**
+ * 入力と書き込みのビットレート、バッファの埋まり具合から詰まり具合を判定する。
+ * 悪化はすぐに通知し、回復は何回か続けて判定されてから通知する
+ */
+final class CongestionDetector {
+
+    // 悪化と判定するバッファの埋まり具合
+    private static final double WARN_FILL = 0.4;
+    private static final double CRITICAL_FILL = 0.75;
+    // 回復と判定するバッファの埋まり具合。悪化より低くしてばたつかないようにする
+    private static final double WARN_EXIT_FILL = 0.5;
+    private static final double OK_EXIT_FILL = 0.15;
+
+    // 入力に対する書き込みの割合がこれを下回ったら悪化と判定する
+    private static final double WARN_DRAIN_RATIO = 0.95;
+    private static final double CRITICAL_DRAIN_RATIO = 0.7;
+
+    // 推奨ビットレートを書き込みのビットレートに対してどれだけ控えめにするか
+    private static final double WARN_MARGIN = 0.85;
+    private static final double CRITICAL_MARGIN = 0.6;
+    // 書き込みが止まっていても、推奨ビットレートは入力のビットレートのこの割合より下げない
+    private static final double MIN_RECOMMENDATION_RATIO = 0.25;
+
+    // 回復と判定するのに必要な連続回数
+    private static final int RECOVERY_COUNT = 3;
+    // 推奨ビットレートがこれ以上変わったら通知し直す
+    private static final double RECOMMENDATION_CHANGE = 0.1;
+
+    private CongestionEvent.Level level;
+    private int recoveries;
+    private long previousQueuedSize;
+    private long previousRecommendation;
+
+    CongestionDetector() {
+        this.level = CongestionEvent.Level.OK;
+        this.recoveries = 0;
+        this.previousQueuedSize = 0L;
+        this.previousRecommendation = 0L;
+    }
+
+    /**
+     * 判定する
+     *
+     * @param inputBitrate 入力のビットレート（bps）
+     * @param drainBitrate 書き込みのビットレート（bps）
+     * @param queuedSize   溜まっているデータのバイト数
+     * @param capacity     バッファサイズ
+     * @return 通知すべきなら通知内容。そうでなければ null
+     */
+    @Nullable
+    synchronized CongestionEvent evaluate(long inputBitrate, long drainBitrate, long queuedSize, long capacity) {
+        final double fill = capacity > 0 ? (double) queuedSize / capacity : 0;
+        final boolean growing = queuedSize > this.previousQueuedSize;
+        this.previousQueuedSize = queuedSize;
+        final double drainRatio = inputBitrate > 0 ? (double) drainBitrate / inputBitrate : 1;
+
+        final CongestionEvent.Level observed;
+        // 今の段階に留まるかを、一段下への悪化の判定より先に見る
+        if (fill >= CRITICAL_FILL || (growing && drainRatio < CRITICAL_DRAIN_RATIO)) {
+            observed = CongestionEvent.Level.CRITICAL;
+        } else if (this.level == CongestionEvent.Level.CRITICAL && fill >= WARN_EXIT_FILL) {
+            observed = CongestionEvent.Level.CRITICAL;
+        } else if (fill >= WARN_FILL || (growing && drainRatio < WARN_DRAIN_RATIO)) {
+            observed = CongestionEvent.Level.WARN;
+        } else if (this.level != CongestionEvent.Level.OK && fill >= OK_EXIT_FILL) {
+            observed = CongestionEvent.Level.WARN;
+        } else {
+            observed = CongestionEvent.Level.OK;
+        }
+
+        final CongestionEvent.Level next;
+        if (observed.compareTo(this.level) >= 0) {
+            next = observed;
+            this.recoveries = 0;
+        } else if (++this.recoveries >= RECOVERY_COUNT) {
+            next = observed;
+            this.recoveries = 0;
+        } else {
+            next = this.level;
+        }
+
+        final long recommendation = recommend(next, inputBitrate, drainBitrate);
+        final boolean changed = (next != this.level);
+        final boolean moved = next != CongestionEvent.Level.OK && Math.abs(recommendation - this.previousRecommendation) > this.previousRecommendation * RECOMMENDATION_CHANGE;
+        this.level = next;
+        if (!changed && !moved) {
+            return null;
+        }
+        this.previousRecommendation = recommendation;
+        return new CongestionEvent(next, recommendation, inputBitrate, drainBitrate, queuedSize, capacity);
+    }
+
+    static long recommend(CongestionEvent.Level level, long inputBitrate, long drainBitrate) {
+        final long floor = (long) (inputBitrate * MIN_RECOMMENDATION_RATIO);
+        switch (level) {
+            case WARN:
+                return Math.max(floor, (long) (Math.min(inputBitrate, drainBitrate) * WARN_MARGIN));
+            case CRITICAL:
+                return Math.max(floor, (long) (Math.min(inputBitrate, drainBitrate) * CRITICAL_MARGIN));
+            default:
+                return inputBitrate;
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+
+/**
+ * FFmpeg への書き込みの詰まり具合の通知
+ */
+public final class CongestionEvent {
+
+    /**
+     * 詰まり具合
+     */
+    public enum Level {
+        /**
+         * 入力に書き込みが追いついている
+         */
+        OK,
+        /**
+         * 書き込みが遅れ始めている。ビットレートを下げた方がよい
+         */
+        WARN,
+        /**
+         * このままではバッファがクリアされる。すぐにビットレートを下げるべき
+         */
+        CRITICAL,
+    }
+
+    @NonNull
+    private final Level level;
+    private final long recommendedBitrate;
+    private final long inputBitrate;
+    private final long drainBitrate;
+    private final long queuedSize;
+    private final long capacity;
+
+    CongestionEvent(@NonNull Level level, long recommendedBitrate, long inputBitrate, long drainBitrate, long queuedSize, long capacity) {
+        this.level = level;
+        this.recommendedBitrate = recommendedBitrate;
+        this.inputBitrate = inputBitrate;
+        this.drainBitrate = drainBitrate;
+        this.queuedSize = queuedSize;
+        this.capacity = capacity;
+    }
+
+    @NonNull
+    public Level getLevel() {
+        return this.level;
+    }
+
+    /**
+     * @return 推奨する映像のビットレート（bps）
+     */
+    public long getRecommendedBitrate() {
+        return this.recommendedBitrate;
+    }
+
+    /**
+     * @return 見積もった入力のビットレート（bps）
+     */
+    public long getInputBitrate() {
+        return this.inputBitrate;
+    }
+
+    /**
+     * @return 見積もった FFmpeg への書き込みのビットレート（bps）
+     */
+    public long getDrainBitrate() {
+        return this.drainBitrate;
+    }
+
+    /**
+     * @return 溜まっているデータのバイト数
+     */
+    public long getQueuedSize() {
+        return this.queuedSize;
+    }
+
+    /**
+     * @return その時のバッファサイズ
+     */
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    @Override
+    public String toString() {
+        return this.level + "{recommended=" + this.recommendedBitrate
+                + ", input=" + this.inputBitrate
+                + ", drain=" + this.drainBitrate
+                + ", queued=" + this.queuedSize + "/" + this.capacity + "}";
+    }
+
+}
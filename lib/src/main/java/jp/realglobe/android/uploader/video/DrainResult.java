@@ -0,0 +1,72 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+/**
+ * 溜まっているデータを流し切ってから止めた結果
+ */
+public final class DrainResult {
+
+    private final long drainedSize;
+    private final long discardedSize;
+    private final boolean clean;
+    private final long elapsed;
+
+    DrainResult(long drainedSize, long discardedSize, boolean clean, long elapsed) {
+        this.drainedSize = drainedSize;
+        this.discardedSize = discardedSize;
+        this.clean = clean;
+        this.elapsed = elapsed;
+    }
+
+    /**
+     * @return 止め始めてから FFmpeg に渡せたバイト数。書き込みに失敗したときは、バッファに残っていたかもしれない分を除く
+     */
+    public long getDrainedSize() {
+        return this.drainedSize;
+    }
+
+    /**
+     * @return 渡し切れずに捨てたバイト数。流し切っている間に書き込まれて受け付けなかった分も含む
+     */
+    public long getDiscardedSize() {
+        return this.discardedSize;
+    }
+
+    /**
+     * @return 期限内に全て渡し切って、FFmpeg が終了コード 0 で自分で終了したら true
+     */
+    public boolean isClean() {
+        return this.clean;
+    }
+
+    /**
+     * @return 止めるのにかかった時間（ミリ秒）
+     */
+    public long getElapsed() {
+        return this.elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "{drained=" + this.drainedSize
+                + ", discarded=" + this.discardedSize
+                + ", clean=" + this.clean
+                + ", elapsed=" + this.elapsed + "}";
+    }
+
+}
@@ -0,0 +1,212 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jp.realglobe.android.logger.simple.Log;
+
+/**
+ * 出力設定ごとの FFmpeg のエンコード性能を測る。
+ * ネットワークは使わず、FFmpeg が生成する合成映像をエンコードして捨てる
+ */
+public final class FFmpegBenchmark {
+
+    private static final String TAG = FFmpegBenchmark.class.getName();
+
+    private static final Pattern BENCH_PATTERN = Pattern.compile("bench:\\s+utime=([0-9.]+)s\\s+stime=([0-9.]+)s\\s+rtime=([0-9.]+)s");
+
+    private FFmpegBenchmark() {
+    }
+
+    /**
+     * 計測結果
+     */
+    public static final class Result {
+
+        @NonNull
+        private final FFmpegOutputProfile profile;
+        private final int frames;
+        private final double realTime;
+        private final double cpuTime;
+
+        private Result(@NonNull FFmpegOutputProfile profile, int frames, double realTime, double cpuTime) {
+            this.profile = profile;
+            this.frames = frames;
+            this.realTime = realTime;
+            this.cpuTime = cpuTime;
+        }
+
+        @NonNull
+        public FFmpegOutputProfile getProfile() {
+            return this.profile;
+        }
+
+        /**
+         * @return 1 秒あたりにエンコードできたフレーム数
+         */
+        public double getFps() {
+            return this.realTime > 0 ? this.frames / this.realTime : 0;
+        }
+
+        /**
+         * @return 使った CPU 時間（秒）
+         */
+        public double getCpuTime() {
+            return this.cpuTime;
+        }
+
+        /**
+         * 1 フレームあたりの CPU 時間。
+         * 並列度に左右されないので、出力設定の重さを比べるのに使う
+         *
+         * @return 1 フレームあたりに使った CPU 時間（秒）
+         */
+        public double getCpuTimePerFrame() {
+            return this.frames > 0 ? this.cpuTime / this.frames : 0;
+        }
+
+        /**
+         * 計測は実時間に合わせずに全速で行うので、重さではなく並列度の目安になる
+         *
+         * @return 平均の CPU 使用率。1 でコア 1 個分
+         */
+        public double getCpuUsage() {
+            return this.realTime > 0 ? this.cpuTime / this.realTime : 0;
+        }
+
+        /**
+         * @param frameRate 入力映像のフレームレート
+         * @return 実時間に追いつけるなら true
+         */
+        public boolean isRealTime(double frameRate) {
+            return getFps() >= frameRate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.1f fps, cpu %.2f, %.2f ms/frame", this.profile.getName(), getFps(), getCpuUsage(), 1_000 * getCpuTimePerFrame());
+        }
+
+    }
+
+    /**
+     * 合成映像のエンコードを計測する
+     *
+     * @param ffmpeg    FFmpeg の実行可能バイナリ
+     * @param profile   出力設定
+     * @param width     合成映像の幅
+     * @param height    合成映像の高さ
+     * @param frameRate 合成映像のフレームレート
+     * @param frames    エンコードするフレーム数
+     * @return 計測結果
+     * @throws IOException          FFmpeg の実行エラー
+     * @throws InterruptedException FFmpeg の終了待ちで割り込まれた
+     */
+    @NonNull
+    @WorkerThread
+    public static Result measure(@NonNull File ffmpeg, @NonNull FFmpegOutputProfile profile, int width, int height, int frameRate, int frames) throws IOException, InterruptedException {
+        final List<String> command = new ArrayList<>();
+        command.add(ffmpeg.getAbsolutePath());
+        command.add("-hide_banner");
+        command.add("-nostats");
+        command.add("-benchmark");
+        command.add("-f");
+        command.add("lavfi");
+        command.add("-i");
+        command.add("testsrc=size=" + width + "x" + height + ":rate=" + frameRate);
+        command.add("-frames:v");
+        command.add(String.valueOf(frames));
+        command.addAll(profile.toArguments());
+        command.add("-an");
+        command.add("-f");
+        command.add("null");
+        command.add("-");
+        Log.v(TAG, "Execute " + command);
+
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+
+        Matcher bench = null;
+        try (final BufferedReader input = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            while (true) {
+                final String line = input.readLine();
+                if (line == null) {
+                    break;
+                }
+                final Matcher matcher = BENCH_PATTERN.matcher(line);
+                if (matcher.find()) {
+                    bench = matcher;
+                }
+            }
+        }
+
+        final int status = process.waitFor();
+        if (status != 0) {
+            throw new IOException("ffmpeg exited with " + status);
+        } else if (bench == null) {
+            throw new IOException("ffmpeg did not report benchmark");
+        }
+
+        final double cpuTime = Double.parseDouble(bench.group(1)) + Double.parseDouble(bench.group(2));
+        final double realTime = Double.parseDouble(bench.group(3));
+        final Result result = new Result(profile, frames, realTime, cpuTime);
+        Log.i(TAG, "Benchmark " + result);
+        return result;
+    }
+
+    /**
+     * 出力設定を順に計測して、実時間に追いつける中で 1 フレームあたりの CPU 時間が一番短いものを選ぶ
+     *
+     * @param ffmpeg    FFmpeg の実行可能バイナリ
+     * @param profiles  出力設定の候補
+     * @param width     合成映像の幅
+     * @param height    合成映像の高さ
+     * @param frameRate 合成映像のフレームレート
+     * @param frames    エンコードするフレーム数
+     * @return 選んだ出力設定。実時間に追いつけるものが無い場合は null
+     * @throws IOException          FFmpeg の実行エラー
+     * @throws InterruptedException FFmpeg の終了待ちで割り込まれた
+     */
+    @Nullable
+    @WorkerThread
+    public static FFmpegOutputProfile selectCheapest(@NonNull File ffmpeg, @NonNull List<FFmpegOutputProfile> profiles, int width, int height, int frameRate, int frames) throws IOException, InterruptedException {
+        Result best = null;
+        for (FFmpegOutputProfile profile : profiles) {
+            final Result result = measure(ffmpeg, profile, width, height, frameRate, frames);
+            if (!result.isRealTime(frameRate)) {
+                continue;
+            }
+            if (best == null || result.getCpuTimePerFrame() < best.getCpuTimePerFrame()) {
+                best = result;
+            }
+        }
+        return best != null ? best.getProfile() : null;
+    }
+
+}
@@ -0,0 +1,146 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.charset.Charset;
+
+/**
+ * FFmpeg が出力した致命的なエラーの通知
+ */
+public final class FFmpegErrorEvent {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * エラーの種類
+     */
+    public enum Type {
+        /**
+         * アップロード先に接続できない
+         */
+        CONNECTION_REFUSED("Connection refused"),
+        /**
+         * アップロード先との接続が切れた
+         */
+        CONNECTION_RESET("Connection reset by peer"),
+        /**
+         * アップロード先との通信がタイムアウトした
+         */
+        TIMED_OUT("Connection timed out"),
+        /**
+         * アップロード先のホスト名を解決できない
+         */
+        HOST_NOT_FOUND("Failed to resolve hostname", "Name or service not known"),
+        /**
+         * 出力先のパイプやソケットが閉じられた
+         */
+        BROKEN_PIPE("Broken pipe"),
+        /**
+         * 入力が H264 として読めない
+         */
+        INVALID_DATA("Invalid data found when processing input");
+
+        private final byte[][] patterns;
+
+        Type(String... patterns) {
+            this.patterns = new byte[patterns.length][];
+            for (int i = 0; i < patterns.length; i++) {
+                this.patterns[i] = patterns[i].getBytes(ASCII);
+            }
+        }
+
+        /**
+         * 行がこの種類のエラーか調べる
+         *
+         * @param line   行のバイト列
+         * @param length 行の長さ
+         * @return この種類のエラーなら true
+         */
+        boolean matches(@NonNull byte[] line, int length) {
+            for (byte[] pattern : this.patterns) {
+                if (indexOf(line, length, pattern) >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 行を分類する
+         *
+         * @param line   行のバイト列
+         * @param length 行の長さ
+         * @return エラーの種類。致命的なエラーでなければ null
+         */
+        @Nullable
+        static Type classify(@NonNull byte[] line, int length) {
+            for (Type type : values()) {
+                if (type.matches(line, length)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+
+        private static int indexOf(@NonNull byte[] buffer, int length, @NonNull byte[] pattern) {
+            final int last = length - pattern.length;
+            outer:
+            for (int i = 0; i <= last; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (buffer[i + j] != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+    }
+
+    @NonNull
+    private final Type type;
+    @NonNull
+    private final String line;
+
+    FFmpegErrorEvent(@NonNull Type type, @NonNull String line) {
+        this.type = type;
+        this.line = line;
+    }
+
+    @NonNull
+    public Type getType() {
+        return this.type;
+    }
+
+    /**
+     * @return FFmpeg が出力した行
+     */
+    @NonNull
+    public String getLine() {
+        return this.line;
+    }
+
+    @Override
+    public String toString() {
+        return this.type + ": " + this.line;
+    }
+
+}
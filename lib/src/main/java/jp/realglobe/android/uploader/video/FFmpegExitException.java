@@ -0,0 +1,64 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 動かしている途中で FFmpeg が終了した
+ */
+public final class FFmpegExitException extends IOException {
+
+    private final int exitStatus;
+    @NonNull
+    private final List<String> lastLines;
+    private final long detectionLatency;
+
+    FFmpegExitException(int exitStatus, @NonNull List<String> lastLines, long detectionLatency) {
+        super("ffmpeg exited with " + exitStatus + (lastLines.isEmpty() ? "" : ": " + lastLines.get(lastLines.size() - 1)));
+        this.exitStatus = exitStatus;
+        this.lastLines = Collections.unmodifiableList(lastLines);
+        this.detectionLatency = detectionLatency;
+    }
+
+    /**
+     * @return FFmpeg の終了ステータス
+     */
+    public int getExitStatus() {
+        return this.exitStatus;
+    }
+
+    /**
+     * @return FFmpeg が最後に出力した何行か。古い順
+     */
+    @NonNull
+    public List<String> getLastLines() {
+        return this.lastLines;
+    }
+
+    /**
+     * @return FFmpeg の終了からエラーを通知するまでの時間（ミリ秒）
+     */
+    public long getDetectionLatency() {
+        return this.detectionLatency;
+    }
+
+}
@@ -16,26 +16,38 @@
 
 package jp.realglobe.android.uploader.video;
 
+import android.content.Context;
+import android.content.res.AssetManager;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
 
 import jp.realglobe.android.function.Consumer;
 import jp.realglobe.android.logger.simple.Log;
@@ -50,6 +62,15 @@ public final class FFmpegHelper {
 
     private static final int BUFFER_SIZE = 1 << 13; // 8K
 
+    private static final String BINARY_NAME = "ffmpeg";
+    private static final String COMPRESSED_SUFFIX = ".gz";
+    private static final String DIGEST_SUFFIX = ".sha256";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    /**
+     * jniLibs に置いた場合の名前。インストール時に展開させるには lib*.so という名前にする必要がある
+     */
+    private static final String NATIVE_LIBRARY_NAME = "libffmpeg.so";
+
     private FFmpegHelper() {
     }
 
@@ -65,18 +86,25 @@ public final class FFmpegHelper {
     @Nullable
     public static File download(@NonNull String urlRoot, @NonNull File saveDir, boolean overwrite, int timeout) throws IOException, URISyntaxException {
 
-        final File savePath = new File(saveDir, "ffmpeg");
+        final File savePath = new File(saveDir, BINARY_NAME);
         if (!overwrite && savePath.exists()) {
             return savePath;
         }
 
+        final long start = SystemClock.elapsedRealtime();
         for (String architecture : getArchitectures()) {
-            final String url = addUrlPath(urlRoot, "/" + architecture + "/ffmpeg");
+            final String url = addUrlPath(urlRoot, "/" + architecture + "/" + BINARY_NAME);
             if (download(new URL(url), savePath, timeout)) {
+                Log.i(TAG, "Downloaded ffmpeg for " + architecture + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
                 break;
             }
         }
 
+        return makeExecutable(savePath);
+    }
+
+    @Nullable
+    private static File makeExecutable(@NonNull File savePath) {
         if (!savePath.exists()) {
             // 失敗
             return null;
@@ -87,6 +115,137 @@ public final class FFmpegHelper {
         return savePath;
     }
 
+    /**
+     * ライブラリのアセットに同梱した FFmpeg を展開する。
+     * アセットには {CPUアーキテクチャ}/ffmpeg.gz として gzip で圧縮したバイナリを、
+     * {CPUアーキテクチャ}/ffmpeg.sha256 として展開後のバイナリの SHA-256 を 16 進数で置いておく。
+     * 対応する CPU アーキテクチャのものだけを展開する
+     *
+     * @param context   コンテキスト
+     * @param assetRoot アセット内の置き場所
+     * @param saveDir   保存先。直下に ffmpeg としてバイナリを配置する
+     * @param overwrite 上書きするか。false かつ既に保存先に ffmpeg ファイルが存在する場合、何もしない
+     * @return FFmpeg のパス。対応する FFmpeg が同梱されていなかった場合は null
+     * @throws IOException 展開エラー。SHA-256 が一致しない場合も含む
+     */
+    @Nullable
+    public static File extract(@NonNull Context context, @NonNull String assetRoot, @NonNull File saveDir, boolean overwrite) throws IOException {
+        final File savePath = new File(saveDir, BINARY_NAME);
+        if (!overwrite && savePath.exists()) {
+            return savePath;
+        }
+
+        final AssetManager assets = context.getAssets();
+        final long start = SystemClock.elapsedRealtime();
+        for (String architecture : getArchitectures()) {
+            final String path = assetRoot + "/" + architecture + "/" + BINARY_NAME;
+            if (extract(assets, path, savePath)) {
+                Log.i(TAG, "Extracted ffmpeg for " + architecture + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                break;
+            }
+        }
+
+        return makeExecutable(savePath);
+    }
+
+    /**
+     * 展開する
+     *
+     * @param assets   アセット
+     * @param path     アセット内のバイナリのパス。圧縮ファイルとハッシュ値ファイルはこれに拡張子を付けたもの
+     * @param savePath 展開先ファイルパス
+     * @return 成功したら true。アセットが無ければ false
+     * @throws IOException 展開エラー
+     */
+    private static boolean extract(@NonNull AssetManager assets, @NonNull String path, @NonNull File savePath) throws IOException {
+        final String expected;
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(assets.open(path + DIGEST_SUFFIX), "US-ASCII"))) {
+            final String line = reader.readLine();
+            if (line == null || line.trim().isEmpty()) {
+                throw new IOException("empty digest " + path + DIGEST_SUFFIX);
+            }
+            // sha256sum の出力形式も受け付ける
+            expected = line.trim().split("\\s+")[0].toLowerCase(Locale.US);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+
+        final File parent = savePath.getParentFile();
+        if (parent != null && parent.mkdirs()) {
+            Log.i(TAG, "Made directory " + savePath.getParent());
+        }
+
+        // 無いことと書き出せないことを区別するため、アセットを開くところだけで FileNotFoundException を受ける
+        final InputStream compressed;
+        try {
+            compressed = assets.open(path + COMPRESSED_SUFFIX);
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "No compressed binary for " + path);
+            return false;
+        }
+
+        // 途中で失敗しても壊れたバイナリが残らないように、別名で展開してから置き換える
+        final File tempPath = new File(savePath.getPath() + ".tmp");
+        boolean renamed = false;
+        try {
+            final MessageDigest digest = newDigest();
+            try (final InputStream raw = compressed;
+                 final InputStream input = new GZIPInputStream(raw, BUFFER_SIZE);
+                 final OutputStream output = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tempPath)), digest)) {
+                copy(input, output);
+            }
+
+            final String actual = toHex(digest.digest());
+            if (!actual.equals(expected)) {
+                throw new IOException("digest mismatch for " + path + ": expected " + expected + " but " + actual);
+            }
+            renamed = tempPath.renameTo(savePath);
+            if (!renamed) {
+                throw new IOException("cannot rename " + tempPath + " to " + savePath);
+            }
+        } finally {
+            if (!renamed && tempPath.exists() && !tempPath.delete()) {
+                Log.w(TAG, "Cannot delete " + tempPath);
+            }
+        }
+        return true;
+    }
+
+    @NonNull
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // 必ずあるはず
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @NonNull
+    private static String toHex(@NonNull byte[] bytes) {
+        final StringBuilder builder = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            builder.append(String.format(Locale.US, "%02x", b & 0xff));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * jniLibs/{CPUアーキテクチャ}/libffmpeg.so として同梱され、インストール時に展開された FFmpeg を探す
+     *
+     * @param context コンテキスト
+     * @return FFmpeg のパス。見つからなかった場合は null
+     */
+    @Nullable
+    public static File findInstalled(@NonNull Context context) {
+        final String dir = context.getApplicationInfo().nativeLibraryDir;
+        if (dir == null) {
+            return null;
+        }
+        final File path = new File(dir, NATIVE_LIBRARY_NAME);
+        return path.canExecute() ? path : null;
+    }
+
     private static String addUrlPath(@NonNull String base, @NonNull String subPath) throws MalformedURLException, URISyntaxException {
         // 普通にやると % 周りが勝手にデコードされてしまうので頑張る
         final URI uri = new URI(base);
@@ -149,7 +308,7 @@ public final class FFmpegHelper {
 
         final List<String> architectures = new ArrayList<>();
         for (String architecture : new String[]{Build.CPU_ABI, Build.CPU_ABI2}) {
-            if (architecture != null && architecture.isEmpty()) {
+            if (architecture != null && !architecture.isEmpty()) {
                 architectures.add(architecture);
             }
         }
@@ -178,11 +337,58 @@ public final class FFmpegHelper {
      * @param onError   失敗時に UI スレッドで実行される
      */
     public static void asyncDownload(@NonNull String urlRoot, @NonNull File saveDir, boolean overwrite, int timeout, @Nullable Consumer<File> onSuccess, @Nullable Consumer<Exception> onError) {
+        execute(() -> download(urlRoot, saveDir, overwrite, timeout), onSuccess, onError);
+    }
+
+    /**
+     * 非同期に同梱した FFmpeg を展開する。
+     *
+     * @param context   コンテキスト
+     * @param assetRoot アセット内の置き場所。この下に {CPUアーキテクチャ}/ffmpeg.gz と {CPUアーキテクチャ}/ffmpeg.sha256 が置いてある
+     * @param saveDir   保存先。直下に ffmpeg としてバイナリを配置する
+     * @param overwrite 上書きするか。false かつ既に保存先に ffmpeg ファイルが存在する場合、何もしない
+     * @param onSuccess 成功時に UI スレッドで実行される。引数は FFmpeg のパス。対応する FFmpeg が同梱されていなかった場合は null
+     * @param onError   失敗時に UI スレッドで実行される
+     */
+    public static void asyncExtract(@NonNull Context context, @NonNull String assetRoot, @NonNull File saveDir, boolean overwrite, @Nullable Consumer<File> onSuccess, @Nullable Consumer<Exception> onError) {
+        final Context applicationContext = context.getApplicationContext();
+        execute(() -> extract(applicationContext, assetRoot, saveDir, overwrite), onSuccess, onError);
+    }
+
+    /**
+     * 非同期に FFmpeg を用意する。
+     * インストール時に展開されたもの、アセットに同梱したもの、ダウンロードしたものの順に試す
+     *
+     * @param context   コンテキスト
+     * @param assetRoot アセット内の置き場所。この下に {CPUアーキテクチャ}/ffmpeg.gz と {CPUアーキテクチャ}/ffmpeg.sha256 が置いてある
+     * @param urlRoot   ダウンロード元の URL。この下に {CPUアーキテクチャ}/ffmpeg でバイナリが置いてある
+     * @param saveDir   保存先。直下に ffmpeg としてバイナリを配置する
+     * @param overwrite 上書きするか。false かつ既に保存先に ffmpeg ファイルが存在する場合、何もしない
+     * @param timeout   接続タイムアウト（ミリ秒）
+     * @param onSuccess 成功時に UI スレッドで実行される。引数は FFmpeg のパス。対応する FFmpeg を用意できなかった場合は null
+     * @param onError   失敗時に UI スレッドで実行される
+     */
+    public static void asyncPrepare(@NonNull Context context, @NonNull String assetRoot, @NonNull String urlRoot, @NonNull File saveDir, boolean overwrite, int timeout, @Nullable Consumer<File> onSuccess, @Nullable Consumer<Exception> onError) {
+        final Context applicationContext = context.getApplicationContext();
+        execute(() -> {
+            final File installed = findInstalled(applicationContext);
+            if (installed != null) {
+                return installed;
+            }
+            final File extracted = extract(applicationContext, assetRoot, saveDir, overwrite);
+            if (extracted != null) {
+                return extracted;
+            }
+            return download(urlRoot, saveDir, overwrite, timeout);
+        }, onSuccess, onError);
+    }
+
+    private static void execute(@NonNull Callable<File> task, @Nullable Consumer<File> onSuccess, @Nullable Consumer<Exception> onError) {
         (new AsyncTask<Void, Void, Object>() {
             @Override
             protected Object doInBackground(Void... params) {
                 try {
-                    return download(urlRoot, saveDir, overwrite, timeout);
+                    return task.call();
                 } catch (Exception e) {
                     return e;
                 }
@@ -0,0 +1,275 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FFmpeg の映像出力設定。
+ * 再エンコードしない設定と libx264 で再エンコードする設定がある
+ */
+public final class FFmpegOutputProfile {
+
+    /**
+     * 再エンコードしない
+     */
+    public static final FFmpegOutputProfile COPY = new FFmpegOutputProfile(null, 0, 0, 0L, 0, null, 0, false);
+
+    /**
+     * スレッド数を CPU コア数から決める
+     */
+    public static final int THREADS_AUTO = -1;
+
+    private static final String ENCODER = "libx264";
+
+    @Nullable
+    private final String name;
+    private final int width;
+    private final int height;
+    private final long maxBitrate;
+    private final int gop;
+    @Nullable
+    private final String preset;
+    private final int threads;
+    private final boolean zeroLatency;
+
+    private FFmpegOutputProfile(@Nullable String name, int width, int height, long maxBitrate, int gop, @Nullable String preset, int threads, boolean zeroLatency) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.maxBitrate = maxBitrate;
+        this.gop = gop;
+        this.preset = preset;
+        this.threads = threads;
+        this.zeroLatency = zeroLatency;
+    }
+
+    /**
+     * @return 再エンコードしないなら true
+     */
+    public boolean isCopy() {
+        return this.preset == null;
+    }
+
+    @NonNull
+    public String getName() {
+        if (this.name != null) {
+            return this.name;
+        } else if (isCopy()) {
+            return "copy";
+        }
+        return this.width + "x" + this.height + "@" + (this.maxBitrate / 1_000) + "k/" + this.preset;
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * @return ビットレートの上限（bps）。0 なら制限しない
+     */
+    public long getMaxBitrate() {
+        return this.maxBitrate;
+    }
+
+    public int getGop() {
+        return this.gop;
+    }
+
+    @Nullable
+    public String getPreset() {
+        return this.preset;
+    }
+
+    public boolean isZeroLatency() {
+        return this.zeroLatency;
+    }
+
+    /**
+     * @return FFmpeg に渡すスレッド数。0 なら FFmpeg に任せる
+     */
+    public int getThreads() {
+        if (this.threads != THREADS_AUTO) {
+            return this.threads;
+        }
+        return getAutoThreads(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * エンコードに使うスレッド数を決める。
+     * 書き込みや読み込みのスレッドと UI スレッドの分のコアを残す
+     *
+     * @param processors 使える CPU コア数
+     * @return スレッド数
+     */
+    static int getAutoThreads(int processors) {
+        if (processors <= 2) {
+            return 1;
+        }
+        return processors - 1;
+    }
+
+    /**
+     * @return 映像出力部分の FFmpeg 実行引数
+     */
+    @NonNull
+    public List<String> toArguments() {
+        final List<String> args = new ArrayList<>();
+        if (isCopy()) {
+            args.add("-c:v");
+            args.add("copy");
+            return args;
+        }
+
+        args.add("-c:v");
+        args.add(ENCODER);
+        args.add("-preset");
+        args.add(this.preset);
+        if (this.zeroLatency) {
+            args.add("-tune");
+            args.add("zerolatency");
+        }
+        if (this.width > 0 && this.height > 0) {
+            args.add("-vf");
+            args.add("scale=" + this.width + ":" + this.height);
+        }
+        if (this.maxBitrate > 0) {
+            args.add("-b:v");
+            args.add(String.valueOf(this.maxBitrate));
+            args.add("-maxrate");
+            args.add(String.valueOf(this.maxBitrate));
+            // レート制御のバッファは 1 秒分
+            args.add("-bufsize");
+            args.add(String.valueOf(this.maxBitrate));
+        }
+        if (this.gop > 0) {
+            args.add("-g");
+            args.add(String.valueOf(this.gop));
+        }
+        final int threads = getThreads();
+        if (threads > 0) {
+            args.add("-threads");
+            args.add(String.valueOf(threads));
+        }
+        return args;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + toArguments();
+    }
+
+    /**
+     * 再エンコードする設定を作る
+     */
+    public static final class Builder {
+
+        private String name;
+        private int width;
+        private int height;
+        private long maxBitrate;
+        private int gop;
+        private String preset;
+        private int threads;
+        private boolean zeroLatency;
+
+        public Builder() {
+            this.preset = "veryfast";
+            this.threads = THREADS_AUTO;
+        }
+
+        /**
+         * @param name 名前。ログやベンチマーク結果の表示に使う
+         */
+        @NonNull
+        public Builder setName(@Nullable String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * @param width  出力の幅。0 以下なら変えない
+         * @param height 出力の高さ。0 以下なら変えない
+         */
+        @NonNull
+        public Builder setResolution(int width, int height) {
+            this.width = width;
+            this.height = height;
+            return this;
+        }
+
+        /**
+         * @param maxBitrate ビットレートの上限（bps）。0 以下なら制限しない
+         */
+        @NonNull
+        public Builder setMaxBitrate(long maxBitrate) {
+            this.maxBitrate = maxBitrate;
+            return this;
+        }
+
+        /**
+         * @param gop キーフレーム間隔（フレーム数）。0 以下なら FFmpeg に任せる
+         */
+        @NonNull
+        public Builder setGop(int gop) {
+            this.gop = gop;
+            return this;
+        }
+
+        /**
+         * @param preset libx264 のプリセット。ultrafast, superfast, veryfast など
+         */
+        @NonNull
+        public Builder setPreset(@NonNull String preset) {
+            this.preset = preset;
+            return this;
+        }
+
+        /**
+         * @param threads エンコードのスレッド数。{@link #THREADS_AUTO} なら CPU コア数から決める。0 なら FFmpeg に任せる
+         */
+        @NonNull
+        public Builder setThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * @param zeroLatency tune=zerolatency を付けるか
+         */
+        @NonNull
+        public Builder setZeroLatency(boolean zeroLatency) {
+            this.zeroLatency = zeroLatency;
+            return this;
+        }
+
+        @NonNull
+        public FFmpegOutputProfile build() {
+            return new FFmpegOutputProfile(this.name, this.width, this.height, this.maxBitrate, this.gop, this.preset, this.threads, this.zeroLatency);
+        }
+
+    }
+
+}
@@ -21,6 +21,10 @@ import android.support.annotation.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import jp.realglobe.android.function.Consumer;
 
@@ -34,35 +38,169 @@ public final class FFmpegRtmpUploader {
 
     private final PipedFFmpegRunner runner;
 
+    private volatile TrafficTraceRecorder traceRecorder;
+
     public FFmpegRtmpUploader() {
         this.runner = new PipedFFmpegRunner();
+        this.traceRecorder = null;
+    }
+
+    /**
+     * 送信の記録先を設定する。
+     * 記録先を閉じるのは呼び出し側で行う
+     *
+     * @param traceRecorder 送信の記録先。null なら記録しない
+     */
+    public void setTraceRecorder(@Nullable TrafficTraceRecorder traceRecorder) {
+        this.traceRecorder = traceRecorder;
+    }
+
+    /**
+     * 書き込みの詰まり具合の通知先を設定する。
+     * 次に動かしたときから有効になる。
+     * 通知は {@link #sendVideo(byte[])} を呼んだスレッドで行われる
+     *
+     * @param onCongestion 詰まり具合が変わったときに実行される関数。推奨ビットレートに合わせてエンコーダーのビットレートを変えるとよい
+     */
+    public void setOnCongestion(@Nullable Consumer<CongestionEvent> onCongestion) {
+        this.runner.setOnCongestion(onCongestion);
+    }
+
+    /**
+     * FFmpeg が致命的なエラーを出力したときの通知先を設定する。
+     * 次に動かしたときから有効になる。
+     * 通知は FFmpeg の出力を読むスレッドで行われる
+     *
+     * @param onFFmpegError FFmpeg が致命的なエラーを出力したときに実行される関数
+     */
+    public void setOnFFmpegError(@Nullable Consumer<FFmpegErrorEvent> onFFmpegError) {
+        this.runner.setOnFFmpegError(onFFmpegError);
+    }
+
+    /**
+     * 書き込みスレッドの優先度を設定する。
+     * 次に動かしたときから有効になる
+     *
+     * @param writerPriority {@link android.os.Process#setThreadPriority(int)} の値
+     */
+    public void setWriterPriority(int writerPriority) {
+        this.runner.setWriterPriority(writerPriority);
+    }
+
+    /**
+     * FFmpeg の出力を読むスレッドの優先度を設定する。
+     * 次に動かしたときから有効になる
+     *
+     * @param readerPriority {@link android.os.Process#setThreadPriority(int)} の値
+     */
+    public void setReaderPriority(int readerPriority) {
+        this.runner.setReaderPriority(readerPriority);
+    }
+
+    /**
+     * FFmpeg の nice 値を設定する。
+     * 次に動かしたときから有効になる
+     *
+     * @param ffmpegNice nice 値。0 なら変えない
+     */
+    public void setFFmpegNice(int ffmpegNice) {
+        this.runner.setFFmpegNice(ffmpegNice);
+    }
+
+    /**
+     * FFmpeg を動かす CPU を設定する。
+     * 次に動かしたときから有効になる
+     *
+     * @param ffmpegAffinity 使う CPU のビットを立てた値。0 なら変えない
+     */
+    public void setFFmpegAffinity(long ffmpegAffinity) {
+        this.runner.setFFmpegAffinity(ffmpegAffinity);
     }
 
-    public synchronized boolean isRunning() {
+    /**
+     * @return FFmpeg が最後に出力した何行か。古い順
+     */
+    @NonNull
+    public List<String> getDiagnosticLines() {
+        return this.runner.getDiagnosticLines();
+    }
+
+    /**
+     * @return 直近で動かしたときに FFmpeg が途中で終了していたらその情報。そうでなければ null
+     */
+    @Nullable
+    public FFmpegExitException getLastExit() {
+        return this.runner.getLastExit();
+    }
+
+    public boolean isRunning() {
         return this.runner.isRunning();
     }
 
+    /**
+     * 動かす。
+     * 既に動いてたら何もしない。
+     * 映像は再エンコードしない
+     *
+     * @param ffmpeg   FFmpeg の実行可能バイナリ
+     * @param url      アップロード先 URL
+     * @param onError  エラー時に実行される関数
+     * @param capacity バッファサイズ
+     * @return 動かしたら true
+     * @throws IOException FFmpeg の実行エラー
+     */
+    public boolean start(@NonNull File ffmpeg, @NonNull String url, @Nullable Consumer<Exception> onError, long capacity) throws IOException {
+        return start(ffmpeg, url, FFmpegOutputProfile.COPY, onError, capacity);
+    }
+
     /**
      * 動かす。
      * 既に動いてたら何もしない
      *
      * @param ffmpeg   FFmpeg の実行可能バイナリ
      * @param url      アップロード先 URL
+     * @param profile  映像の出力設定
      * @param onError  エラー時に実行される関数
      * @param capacity バッファサイズ
      * @return 動かしたら true
      * @throws IOException FFmpeg の実行エラー
      */
-    public synchronized boolean start(@NonNull File ffmpeg, @NonNull String url, @Nullable Consumer<Exception> onError, long capacity) throws IOException {
-        return this.runner.start(ffmpeg, new String[]{
+    public boolean start(@NonNull File ffmpeg, @NonNull String url, @NonNull FFmpegOutputProfile profile, @Nullable Consumer<Exception> onError, long capacity) throws IOException {
+        return this.runner.start(ffmpeg, makeArguments(url, profile), onError, capacity);
+    }
+
+    /**
+     * 溜めておく映像の長さを指定して動かす。
+     * バッファサイズは入力のビットレートから決め、随時変える。
+     * 既に動いてたら何もしない
+     *
+     * @param ffmpeg      FFmpeg の実行可能バイナリ
+     * @param url         アップロード先 URL
+     * @param profile     映像の出力設定
+     * @param onError     エラー時に実行される関数
+     * @param maxLatency  溜めておく映像の長さの上限（ミリ秒）
+     * @param maxCapacity バッファサイズの上限
+     * @return 動かしたら true
+     * @throws IOException FFmpeg の実行エラー
+     */
+    public boolean startWithLatency(@NonNull File ffmpeg, @NonNull String url, @NonNull FFmpegOutputProfile profile, @Nullable Consumer<Exception> onError, long maxLatency, long maxCapacity) throws IOException {
+        return this.runner.startWithLatency(ffmpeg, makeArguments(url, profile), onError, maxLatency, maxCapacity);
+    }
+
+    @NonNull
+    private static String[] makeArguments(@NonNull String url, @NonNull FFmpegOutputProfile profile) {
+        final List<String> args = new ArrayList<>(Arrays.asList(
                 "-loglevel", "error",
                 "-f", "h264",
-                "-i", "pipe:0",
-                "-c:v", "copy",
+                "-i", "pipe:0"
+        ));
+        args.addAll(profile.toArguments());
+        args.addAll(Arrays.asList(
                 "-an",
                 "-f", "flv",
-                url,
-        }, onError, capacity);
+                url
+        ));
+        return args.toArray(new String[args.size()]);
     }
 
     /**
@@ -71,18 +209,81 @@ public final class FFmpegRtmpUploader {
      *
      * @return 止めたら true
      */
-    public synchronized boolean stop() {
+    public boolean stop() {
         return this.runner.stop();
     }
 
+    /**
+     * 溜まっている映像をアップロードし切ってから止める。
+     * 期限までに終わらなければ残りは捨てる。
+     * 既に止まってたら何もしない
+     *
+     * @param drainTimeout 期限（ミリ秒）
+     * @return 結果。既に止まってたら null
+     */
+    @Nullable
+    public DrainResult stop(long drainTimeout) {
+        return this.runner.stop(drainTimeout);
+    }
+
     /**
      * 映像をアップロードする
      *
      * @param data 生の H264 映像データ
      * @return バッファをクリアしたら true
      */
-    public synchronized boolean sendVideo(@NonNull byte[] data) {
+    public boolean sendVideo(@NonNull byte[] data) {
+        final TrafficTraceRecorder recorder = this.traceRecorder;
+        if (recorder != null) {
+            recorder.record(ByteBuffer.wrap(data));
+        }
         return this.runner.write(data);
     }
 
+    /**
+     * 映像をアップロードする。
+     * アップロードし終わるまでデータの中身を変えてはいけない
+     *
+     * @param data 生の H264 映像データ。position から limit までをアップロードする
+     * @return バッファをクリアしたら true
+     */
+    public boolean sendVideo(@NonNull ByteBuffer data) {
+        final TrafficTraceRecorder recorder = this.traceRecorder;
+        if (recorder != null) {
+            recorder.record(data);
+        }
+        return this.runner.write(data);
+    }
+
+    /**
+     * バッファサイズの上限を変える
+     *
+     * @param maxCapacity バッファサイズの上限
+     */
+    public void setMaxCapacity(long maxCapacity) {
+        this.runner.setMaxCapacity(maxCapacity);
+    }
+
+    /**
+     * @return 統計情報。動いてなければ {@link UploaderMetrics#EMPTY}
+     */
+    @NonNull
+    public UploaderMetrics getMetrics() {
+        return this.runner.getMetrics();
+    }
+
+    /**
+     * @return 現在のバッファサイズ。動いてなければ 0
+     */
+    public long getCapacity() {
+        return this.runner.getCapacity();
+    }
+
+    /**
+     * @return 溜まっている映像の長さの見積もり（ミリ秒）。分からなければ -1
+     */
+    public long getQueuedDuration() {
+        return this.runner.getQueuedDuration();
+    }
+
 }
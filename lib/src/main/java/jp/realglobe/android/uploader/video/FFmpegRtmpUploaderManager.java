@@ -0,0 +1,323 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.realglobe.android.function.Consumer;
+import jp.realglobe.android.logger.simple.Log;
+
+/**
+ * 複数のアップロードをまとめて管理する。
+ * 全体のバッファサイズの合計が予算を超えないように、優先度に応じて各アップロードに配分する。
+ * アップロードの開始や停止のたびに配分し直す
+ */
+public final class FFmpegRtmpUploaderManager {
+
+    private static final String TAG = FFmpegRtmpUploaderManager.class.getName();
+
+    /**
+     * 配分するバッファサイズの最小値。
+     * これより小さいと、キーフレーム数枚で溢れて書き込むたびにバッファをクリアすることになる
+     */
+    public static final long MIN_SHARE = 128 << 10; // 128KB
+
+    private static final class Stream {
+
+        @NonNull
+        private final FFmpegRtmpUploader uploader;
+        private final int priority;
+        /**
+         * このアップロード自体のバッファサイズの上限
+         */
+        private final long maxCapacity;
+
+        /**
+         * 配分したバッファサイズ
+         */
+        private long share;
+        /**
+         * 始めている最中なら true。その間はまだ動いてなくても外さない
+         */
+        private boolean starting;
+
+        private Stream(@NonNull FFmpegRtmpUploader uploader, int priority, long maxCapacity) {
+            this.uploader = uploader;
+            this.priority = priority;
+            this.maxCapacity = maxCapacity;
+            this.share = 0L;
+            this.starting = true;
+        }
+
+        /**
+         * @return 配分するバッファサイズの最小値
+         */
+        private long getMinShare() {
+            return this.maxCapacity > 0 ? Math.min(MIN_SHARE, this.maxCapacity) : MIN_SHARE;
+        }
+
+    }
+
+    private final long budget;
+    private final Map<String, Stream> streams;
+
+    /**
+     * @param budget 全体のバッファサイズの合計の上限
+     */
+    public FFmpegRtmpUploaderManager(long budget) {
+        this.budget = budget;
+        this.streams = new LinkedHashMap<>();
+    }
+
+    /**
+     * アップロードを始める。
+     * 同じ名前のアップロードが動いてたら何もしない。
+     * エラーで止まったら、止まった分のバッファサイズを他のアップロードに配分し直す
+     *
+     * @param name        アップロードの名前
+     * @param ffmpeg      FFmpeg の実行可能バイナリ
+     * @param url         アップロード先 URL
+     * @param profile     映像の出力設定
+     * @param onError     エラー時に実行される関数
+     * @param priority    優先度。1 以上。大きいほどバッファサイズを多く配分する
+     * @param maxLatency  溜めておく映像の長さの上限（ミリ秒）。0 以下なら配分されたバッファサイズを固定で使う
+     * @param maxCapacity このアップロードのバッファサイズの上限。配分がこれを超える分は他に回す
+     * @return 始めたアップロード。同じ名前のアップロードが動いてたら null。
+     * 予算が足りず、どれかのアップロードへの配分が {@link #MIN_SHARE} を下回るようになる場合も null
+     * @throws IOException FFmpeg の実行エラー
+     */
+    @Nullable
+    public synchronized FFmpegRtmpUploader start(@NonNull String name, @NonNull File ffmpeg, @NonNull String url, @NonNull FFmpegOutputProfile profile, @Nullable final Consumer<Exception> onError, int priority, long maxLatency, long maxCapacity) throws IOException {
+        if (priority < 1) {
+            throw new IllegalArgumentException("priority must be positive: " + priority);
+        }
+        final Stream existing = this.streams.get(name);
+        if (existing != null && existing.uploader.isRunning()) {
+            return null;
+        }
+
+        final Stream stream = new Stream(new FFmpegRtmpUploader(), priority, maxCapacity);
+        this.streams.put(name, stream);
+        final List<Stream> active = distributeAll();
+        for (Stream other : active) {
+            if (other.share < other.getMinShare()) {
+                // 配分が 0 などになると書き込むたびにバッファをクリアしてしまうので、始めない
+                Log.w(TAG, "Budget " + this.budget + " is too small to start " + name + " with " + active.size() + " streams");
+                this.streams.remove(name);
+                rebalance();
+                return null;
+            }
+        }
+        // 他のアップロードを先に縮めてから始める
+        apply(active);
+
+        final Consumer<Exception> wrapped = (Exception e) -> {
+            if (onError != null) {
+                onError.accept(e);
+            }
+            // FFmpeg の終了などで止まっていたら外す。
+            // 書き込みスレッドなどから呼ばれるので、stop() がそのスレッドの終了を待ちながらロックを持っていても詰まらないように、別スレッドで行う
+            new Thread(this::rebalance, TAG + ":rebalance").start();
+        };
+        final boolean started;
+        try {
+            if (maxLatency > 0) {
+                started = stream.uploader.startWithLatency(ffmpeg, url, profile, wrapped, maxLatency, stream.share);
+            } else {
+                started = stream.uploader.start(ffmpeg, url, profile, wrapped, stream.share);
+            }
+        } catch (IOException e) {
+            this.streams.remove(name);
+            rebalance();
+            throw e;
+        }
+        if (!started) {
+            this.streams.remove(name);
+            rebalance();
+            return null;
+        }
+        stream.starting = false;
+        return stream.uploader;
+    }
+
+    /**
+     * アップロードを止める。
+     * 止めた分のバッファサイズは他のアップロードに配分し直す
+     *
+     * @param name アップロードの名前
+     * @return 止めたら true
+     */
+    public synchronized boolean stop(@NonNull String name) {
+        final Stream stream = this.streams.remove(name);
+        if (stream == null) {
+            return false;
+        }
+        final boolean stopped = stream.uploader.stop();
+        rebalance();
+        return stopped;
+    }
+
+    /**
+     * 全てのアップロードを止める
+     */
+    public synchronized void stopAll() {
+        for (Stream stream : this.streams.values()) {
+            stream.uploader.stop();
+        }
+        this.streams.clear();
+    }
+
+    /**
+     * @param name アップロードの名前
+     * @return アップロード。無ければ null
+     */
+    @Nullable
+    public synchronized FFmpegRtmpUploader get(@NonNull String name) {
+        final Stream stream = this.streams.get(name);
+        return stream != null ? stream.uploader : null;
+    }
+
+    /**
+     * @return 全体のバッファサイズの合計の上限
+     */
+    public long getBudget() {
+        return this.budget;
+    }
+
+    /**
+     * @param name アップロードの名前
+     * @return 配分したバッファサイズ。無ければ 0
+     */
+    public synchronized long getShare(@NonNull String name) {
+        final Stream stream = this.streams.get(name);
+        return stream != null ? stream.share : 0L;
+    }
+
+    /**
+     * @param name アップロードの名前
+     * @return アップロードの統計情報。無ければ {@link UploaderMetrics#EMPTY}
+     */
+    @NonNull
+    public synchronized UploaderMetrics getMetrics(@NonNull String name) {
+        final Stream stream = this.streams.get(name);
+        return stream != null ? stream.uploader.getMetrics() : UploaderMetrics.EMPTY;
+    }
+
+    /**
+     * @return 動いている全てのアップロードの統計情報を足し合わせたもの
+     */
+    @NonNull
+    public synchronized UploaderMetrics getMetrics() {
+        UploaderMetrics sum = UploaderMetrics.EMPTY;
+        for (Stream stream : this.streams.values()) {
+            if (stream.uploader.isRunning()) {
+                sum = sum.plus(stream.uploader.getMetrics());
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 止まったアップロードを外して、バッファサイズを配分し直す。
+     * エラーでアップロードが止まったときなどに呼ぶ
+     */
+    public synchronized void rebalance() {
+        apply(distributeAll());
+    }
+
+    /**
+     * 止まったアップロードを外して、残りに配分する。
+     * 配分を決めるだけで、アップロードには反映しない
+     *
+     * @return 配分したアップロード
+     */
+    @NonNull
+    private List<Stream> distributeAll() {
+        final List<Stream> active = new ArrayList<>();
+        for (Map.Entry<String, Stream> entry : new ArrayList<>(this.streams.entrySet())) {
+            final Stream stream = entry.getValue();
+            if (!stream.starting && !stream.uploader.isRunning()) {
+                // 始め終わったのに止まっている
+                this.streams.remove(entry.getKey());
+                continue;
+            }
+            stream.share = 0L;
+            active.add(stream);
+        }
+
+        distribute(active, this.budget);
+        return active;
+    }
+
+    /**
+     * 配分をアップロードに反映する
+     */
+    private void apply(@NonNull List<Stream> active) {
+        for (Stream stream : active) {
+            stream.uploader.setMaxCapacity(stream.share);
+        }
+        Log.v(TAG, "Distributed " + this.budget + " bytes to " + active.size() + " streams");
+    }
+
+    /**
+     * 優先度に比例して配分する。
+     * 上限に達したアップロードの余りは、残りのアップロードに優先度に比例して配分する
+     */
+    private static void distribute(@NonNull List<Stream> streams, long budget) {
+        final List<Stream> remaining = new ArrayList<>(streams);
+        long left = budget;
+        while (!remaining.isEmpty() && left > 0) {
+            long priorities = 0;
+            for (Stream stream : remaining) {
+                priorities += stream.priority;
+            }
+
+            boolean saturated = false;
+            for (Stream stream : new ArrayList<>(remaining)) {
+                final long fair = left * stream.priority / priorities;
+                if (stream.maxCapacity > 0 && fair >= stream.maxCapacity) {
+                    stream.share = stream.maxCapacity;
+                    remaining.remove(stream);
+                    saturated = true;
+                }
+            }
+            if (saturated) {
+                left = budget;
+                for (Stream stream : streams) {
+                    if (!remaining.contains(stream)) {
+                        left -= stream.share;
+                    }
+                }
+                continue;
+            }
+
+            for (Stream stream : remaining) {
+                stream.share = left * stream.priority / priorities;
+            }
+            break;
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 最後の何行かを取っておく。
+ * 領域は最初に確保して使い回し、文字列にするのは取り出すときだけ
+ */
+final class LineRing {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[][] lines;
+    private final int[] lengths;
+
+    /**
+     * 次に書き込む位置
+     */
+    private int next;
+    private int count;
+
+    /**
+     * @param capacity  取っておく行数
+     * @param maxLength 1 行の最大バイト数。超えた分は切り捨てる
+     */
+    LineRing(int capacity, int maxLength) {
+        this.lines = new byte[capacity][maxLength];
+        this.lengths = new int[capacity];
+        this.next = 0;
+        this.count = 0;
+    }
+
+    synchronized void add(@NonNull byte[] line, int length) {
+        final byte[] slot = this.lines[this.next];
+        final int size = Math.min(length, slot.length);
+        System.arraycopy(line, 0, slot, 0, size);
+        this.lengths[this.next] = size;
+        this.next = (this.next + 1) % this.lines.length;
+        if (this.count < this.lines.length) {
+            this.count++;
+        }
+    }
+
+    /**
+     * @return 取っておいた行。古い順
+     */
+    @NonNull
+    synchronized List<String> getLines() {
+        final List<String> result = new ArrayList<>(this.count);
+        final int first = (this.next - this.count + this.lines.length) % this.lines.length;
+        for (int i = 0; i < this.count; i++) {
+            final int index = (first + i) % this.lines.length;
+            result.add(new String(this.lines[index], 0, this.lengths[index], UTF_8));
+        }
+        return result;
+    }
+
+}
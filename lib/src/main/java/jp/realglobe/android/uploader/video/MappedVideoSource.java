@@ -0,0 +1,366 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 生の H264（Annex B 形式）のファイルをメモリマップして、アクセスユニットごとに切り出す。
+ * ファイルは一定の大きさの窓ごとにマップし、切り出したデータはマップした領域をそのまま指す。
+ * そのため、ファイルの大きさに関わらずヒープはほとんど使わない
+ */
+public final class MappedVideoSource implements Closeable {
+
+    /**
+     * マップする窓の標準の大きさ
+     */
+    public static final long DEFAULT_WINDOW_SIZE = 1 << 25; // 32MB
+
+    // NAL ユニットの種類
+    static final int NAL_SLICE = 1;
+    static final int NAL_IDR = 5;
+    static final int NAL_SEI = 6;
+    static final int NAL_SPS = 7;
+    static final int NAL_PPS = 8;
+    static final int NAL_AUD = 9;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long windowEnd;
+
+    /**
+     * 次に切り出すアクセスユニットの先頭
+     */
+    private long position;
+    /**
+     * 最後に切り出したアクセスユニットがキーフレームなら true
+     */
+    private boolean keyFrame;
+
+    /**
+     * @param path ファイル
+     * @throws IOException ファイルを開けなかった
+     */
+    public MappedVideoSource(@NonNull File path) throws IOException {
+        this(path, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param path       ファイル
+     * @param windowSize マップする窓の大きさ。一番大きいアクセスユニットより大きくする
+     * @throws IOException ファイルを開けなかった
+     */
+    public MappedVideoSource(@NonNull File path, long windowSize) throws IOException {
+        this.file = new RandomAccessFile(path, "r");
+        this.channel = this.file.getChannel();
+        this.size = this.channel.size();
+        this.windowSize = windowSize;
+
+        this.window = null;
+        this.windowStart = 0L;
+        this.windowEnd = 0L;
+        this.position = 0L;
+        this.keyFrame = false;
+    }
+
+    /**
+     * @return ファイルの大きさ
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * @return 次に切り出すアクセスユニットの先頭
+     */
+    public long position() {
+        return this.position;
+    }
+
+    /**
+     * @return 最後に切り出したアクセスユニットがキーフレーム（IDR）なら true
+     */
+    public boolean isKeyFrame() {
+        return this.keyFrame;
+    }
+
+    /**
+     * 次に切り出す位置を変える
+     *
+     * @param position アクセスユニットの先頭
+     */
+    public void seek(long position) {
+        if (position < 0 || position > this.size) {
+            throw new IllegalArgumentException("position " + position + " is out of [0, " + this.size + "]");
+        }
+        this.position = position;
+    }
+
+    /**
+     * 指定した位置以前で一番近いキーフレームのアクセスユニットの先頭に移る。
+     * 以前に無ければ以降で一番近いものに移る
+     *
+     * @param offset ファイル内の位置
+     * @return 移った位置。キーフレームが無ければ -1 で、位置は変えない
+     * @throws IOException 読み込みエラー
+     */
+    public long seekToKeyFrame(long offset) throws IOException {
+        long start = findKeyFrameBackward(Math.min(Math.max(0L, offset), this.size));
+        if (start < 0) {
+            start = findKeyFrameForward(Math.max(0L, offset));
+        }
+        if (start >= 0) {
+            this.position = start;
+        }
+        return start;
+    }
+
+    /**
+     * 次のアクセスユニットを切り出す
+     *
+     * @return アクセスユニット。マップした領域を指す読み込み専用のデータ。終わりに達していたら null
+     * @throws IOException 読み込みエラー。アクセスユニットが窓より大きい場合も含む
+     */
+    @Nullable
+    public ByteBuffer next() throws IOException {
+        if (this.position >= this.size) {
+            return null;
+        }
+
+        final long start = this.position;
+        final long end = findAccessUnitEnd(start);
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IOException("access unit at " + start + " is too large");
+        }
+        ensureMapped(start, end);
+
+        final ByteBuffer slice = this.window.duplicate();
+        slice.position((int) (start - this.windowStart));
+        slice.limit((int) (end - this.windowStart));
+        this.position = end;
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * アクセスユニットの終わりを探す。
+     * VCL NAL ユニットの後に、区切りになる NAL ユニットか先頭スライスが来たところで区切る。
+     * キーフレームかどうかも記録する
+     *
+     * @param start アクセスユニットの先頭
+     * @return アクセスユニットの終わり（次のアクセスユニットの先頭）
+     */
+    long findAccessUnitEnd(long start) throws IOException {
+        boolean vcl = false;
+        boolean idr = false;
+        long nal = findStartCode(start);
+        while (nal >= 0) {
+            final long header = skipStartCode(nal);
+            if (header >= this.size) {
+                break;
+            }
+            final int type = byteAt(header) & 0x1f;
+            final boolean slice = (type == NAL_SLICE || type == NAL_IDR);
+            if (vcl && nal > start && (isAccessUnitDelimiter(type) || (slice && isFirstSlice(header)))) {
+                this.keyFrame = idr;
+                return nal;
+            }
+            if (slice) {
+                vcl = true;
+                idr |= (type == NAL_IDR);
+            }
+            nal = findStartCode(header + 1);
+        }
+        this.keyFrame = idr;
+        return this.size;
+    }
+
+    /**
+     * @return アクセスユニットの始まりになる NAL ユニットなら true
+     */
+    private static boolean isAccessUnitDelimiter(int type) {
+        return type == NAL_AUD || type == NAL_SPS || type == NAL_PPS || type == NAL_SEI || (14 <= type && type <= 18);
+    }
+
+    /**
+     * @param header NAL ユニットのヘッダの位置
+     * @return ピクチャの先頭のスライスなら true。first_mb_in_slice が 0 なら指数ゴロム符号の先頭ビットが 1 になる
+     */
+    private boolean isFirstSlice(long header) throws IOException {
+        return header + 1 < this.size && (byteAt(header + 1) & 0x80) != 0;
+    }
+
+    /**
+     * 指定位置以降のスタートコードを探す
+     *
+     * @param from 探し始める位置
+     * @return スタートコードの先頭。4 バイトのスタートコードなら先頭の 0 の位置。無ければ -1
+     */
+    long findStartCode(long from) throws IOException {
+        for (long i = from; i + 2 < this.size; i++) {
+            if (byteAt(i + 2) > 1) {
+                // 3 バイト先が 0 でも 1 でもなければ、ここから 3 つは候補にならない
+                i += 2;
+                continue;
+            }
+            if (byteAt(i) == 0 && byteAt(i + 1) == 0 && byteAt(i + 2) == 1) {
+                return (i > from && byteAt(i - 1) == 0) ? i - 1 : i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 指定位置より前のスタートコードを探す
+     *
+     * @param before この位置より前を探す
+     * @return スタートコードの先頭。4 バイトのスタートコードなら先頭の 0 の位置。無ければ -1
+     */
+    long findPreviousStartCode(long before) throws IOException {
+        for (long i = Math.min(before, this.size) - 3; i >= 0; i--) {
+            if (byteAt(i) == 0 && byteAt(i + 1) == 0 && byteAt(i + 2) == 1) {
+                return (i > 0 && byteAt(i - 1) == 0) ? i - 1 : i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param startCode スタートコードの先頭
+     * @return NAL ユニットのヘッダの位置
+     */
+    long skipStartCode(long startCode) throws IOException {
+        return byteAt(startCode + 2) == 1 ? startCode + 3 : startCode + 4;
+    }
+
+    private long findKeyFrameBackward(long offset) throws IOException {
+        // 位置がパラメータセットなどを指していても、同じアクセスユニットのスライスまで候補に入れる
+        long before = offset + 1;
+        long next = findStartCode(offset);
+        while (next >= 0) {
+            final long header = skipStartCode(next);
+            if (header >= this.size) {
+                break;
+            }
+            if (!isAccessUnitDelimiter(byteAt(header) & 0x1f)) {
+                before = header + 1;
+                break;
+            }
+            next = findStartCode(header);
+        }
+
+        long nal = findPreviousStartCode(before);
+        while (nal >= 0) {
+            final long header = skipStartCode(nal);
+            if (header < this.size && (byteAt(header) & 0x1f) == NAL_IDR && isFirstSlice(header)) {
+                final long start = extendToAccessUnitStart(nal);
+                if (start <= offset) {
+                    return start;
+                }
+            }
+            nal = findPreviousStartCode(nal);
+        }
+        return -1;
+    }
+
+    private long findKeyFrameForward(long offset) throws IOException {
+        long nal = findStartCode(offset);
+        while (nal >= 0) {
+            final long header = skipStartCode(nal);
+            if (header >= this.size) {
+                break;
+            }
+            if ((byteAt(header) & 0x1f) == NAL_IDR && isFirstSlice(header)) {
+                return extendToAccessUnitStart(nal);
+            }
+            nal = findStartCode(header + 1);
+        }
+        return -1;
+    }
+
+    /**
+     * 先頭スライスの直前にある SPS や PPS などを含めたアクセスユニットの先頭を探す
+     *
+     * @param slice 先頭スライスのスタートコードの位置
+     * @return アクセスユニットの先頭
+     */
+    private long extendToAccessUnitStart(long slice) throws IOException {
+        long start = slice;
+        while (true) {
+            final long previous = findPreviousStartCode(start);
+            if (previous < 0) {
+                return start;
+            }
+            final int type = byteAt(skipStartCode(previous)) & 0x1f;
+            if (!isAccessUnitDelimiter(type)) {
+                return start;
+            }
+            start = previous;
+        }
+    }
+
+    /**
+     * 指定位置のバイトを読む。必要なら窓をマップし直す
+     */
+    int byteAt(long position) throws IOException {
+        if (position < this.windowStart || position >= this.windowEnd) {
+            // 前後どちらに読み進めても使えるように、指定位置が窓の真ん中になるようにする
+            map(Math.max(0L, position - this.windowSize / 2));
+        }
+        return this.window.get((int) (position - this.windowStart)) & 0xff;
+    }
+
+    /**
+     * 指定範囲がマップされているようにする
+     */
+    private void ensureMapped(long start, long end) throws IOException {
+        if (start >= this.windowStart && end <= this.windowEnd) {
+            return;
+        }
+        if (end - start > this.windowSize) {
+            throw new IOException("access unit at " + start + " is larger than window " + this.windowSize);
+        }
+        map(start);
+    }
+
+    private void map(long start) throws IOException {
+        final long length = Math.min(this.windowSize, this.size - start);
+        this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        this.windowStart = start;
+        this.windowEnd = start + length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.window = null;
+        this.file.close();
+    }
+
+}
@@ -3,19 +3,35 @@ package jp.realglobe.android.uploader.video;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
-import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import jp.realglobe.android.function.Consumer;
 import jp.realglobe.android.logger.simple.Log;
@@ -28,96 +44,473 @@ public class PipedFFmpegRunner {
 
     private static final String TAG = PipedFFmpegRunner.class.getName();
 
+    private static final long BITRATE_WINDOW = 3_000; // ミリ秒
+    private static final long BITRATE_BUCKET = 100; // ミリ秒
+    private static final long CONGESTION_INTERVAL = 500; // ミリ秒
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int READ_BUFFER_SIZE = 1 << 12; // 4K
+    private static final int WRITE_BUFFER_SIZE = 1 << 13; // 8K
+    private static final int MAX_LINE_LENGTH = 1 << 10; // 1K
+    private static final int DIAGNOSTIC_LINES = 64;
+    private static final long LOG_WINDOW = 1_000; // ミリ秒
+    private static final int MAX_LOG_LINES = 20; // LOG_WINDOW あたり
+    private static final long EXIT_GRACE = 200; // ミリ秒
+
     /**
-     * FFmpeg にデータを渡す
+     * nice や taskset を探す場所
      */
-    private static final class Writer extends Handler implements Closeable {
+    private static final String[] TOOL_DIRS = new String[]{"/system/bin", "/system/xbin"};
 
-        private static final int MSG_DATA = 0;
+    /**
+     * FFmpeg にデータを渡す。
+     * データを渡す側はロックを取らない
+     */
+    private static final class Writer implements Runnable, Closeable {
 
         private final OutputStream output;
+        /**
+         * 配列を持たないデータをそのまま書き込むのに使う
+         */
+        private final WritableByteChannel channel;
         @NonNull
         private final Consumer<Exception> onError;
-        private final long capacity;
+        /**
+         * 溜めておく映像の長さの上限（ミリ秒）。0 以下ならバッファサイズを固定する
+         */
+        private final long maxLatency;
+        private final BitrateEstimator estimator;
+        private final BitrateEstimator drainEstimator;
+        @Nullable
+        private final Consumer<CongestionEvent> onCongestion;
+        private final CongestionDetector congestionDetector;
+        /**
+         * 書き込みスレッドの優先度。{@link android.os.Process#setThreadPriority(int)} の値
+         */
+        private final int priority;
 
+        private final Queue<ByteBuffer> queue;
         private final AtomicLong size;
+        private final AtomicLong lastEvaluation;
+        private final AtomicLong lastCapacityUpdate;
+        private final AtomicLong inputSize;
+        private final AtomicLong drainedSize;
+        private final AtomicLong droppedSize;
+        private final AtomicLong clears;
+        /**
+         * 止め始めた後に来たために受け付けなかったバイト数。droppedSize にも含める
+         */
+        private final AtomicLong rejectedSize;
+        private final Thread thread;
 
+        private volatile long maxCapacity;
+        private volatile long capacity;
+        private volatile long largestData;
+        /**
+         * 書き込みスレッドがデータ待ちで止まってたら true
+         */
+        private volatile boolean waiting;
+        /**
+         * 書き込み中ならその開始時刻。書き込み中でなければ 0
+         */
+        private volatile long writeStart;
+        /**
+         * 溜まっている分を書き込んだら終わるなら true
+         */
+        private volatile boolean finishing;
         private volatile boolean closed;
+        /**
+         * 書き込みに失敗して終わったら true
+         */
+        private volatile boolean failed;
+        /**
+         * 最後に flush してから書き込んだバイト数。書き込みスレッドだけが変える
+         */
+        private volatile long unflushedSize;
 
-        private Writer(@NonNull Looper looper, @NonNull OutputStream output, @Nullable Consumer<Exception> onError, long capacity) {
-            super(looper);
-
-            this.output = output;
+        private Writer(@NonNull String name, @NonNull OutputStream output, @Nullable Consumer<Exception> onError, long capacity, long maxLatency, @Nullable Consumer<CongestionEvent> onCongestion, int priority) {
+            final OutputStream raw = unwrap(output);
+            this.output = new BufferedOutputStream(raw, WRITE_BUFFER_SIZE);
+            // FileOutputStream を取り出せなかったときは、チャンネル越しでもヒープの配列に写してから書き込むことになる
+            this.channel = (raw instanceof FileOutputStream ? ((FileOutputStream) raw).getChannel() : Channels.newChannel(raw));
             this.onError = (onError != null ? onError : (Exception e) -> Log.e(TAG, "Error occurred", e));
-            this.capacity = capacity;
+            this.maxLatency = maxLatency;
+            this.estimator = new BitrateEstimator(BITRATE_WINDOW, BITRATE_BUCKET);
+            this.drainEstimator = new BitrateEstimator(BITRATE_WINDOW, BITRATE_BUCKET);
+            this.onCongestion = onCongestion;
+            this.congestionDetector = new CongestionDetector();
+            this.priority = priority;
 
+            this.queue = new ConcurrentLinkedQueue<>();
             this.size = new AtomicLong(0L);
+            this.lastEvaluation = new AtomicLong(0L);
+            this.lastCapacityUpdate = new AtomicLong(0L);
+            this.inputSize = new AtomicLong(0L);
+            this.drainedSize = new AtomicLong(0L);
+            this.droppedSize = new AtomicLong(0L);
+            this.clears = new AtomicLong(0L);
+            this.rejectedSize = new AtomicLong(0L);
+            this.thread = new Thread(this, name);
 
+            this.maxCapacity = capacity;
+            this.capacity = capacity;
+            this.largestData = 0L;
+            this.waiting = false;
+            this.writeStart = 0L;
+            this.finishing = false;
             this.closed = false;
+            this.failed = false;
+            this.unflushedSize = 0L;
+        }
+
+        private void start() {
+            this.thread.start();
+        }
+
+        /**
+         * 以降の書き込みを受け付けず、溜まっている分を書き込んだら FFmpeg の入力を閉じる
+         *
+         * @param timeout 待つ時間（ミリ秒）
+         * @return 期限内に書き込み終わったら true
+         */
+        private boolean finish(long timeout) {
+            this.finishing = true;
+            LockSupport.unpark(this.thread);
+            try {
+                this.thread.join(Math.max(1L, timeout));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return !this.thread.isAlive();
+        }
+
+        /**
+         * 以降の書き込みを受け付けず、溜まっているデータを捨てる。
+         * パイプへの書き込みで止まっているのは待たない
+         *
+         * @return 捨てたバイト数
+         */
+        private long abort() {
+            this.closed = true;
+            LockSupport.unpark(this.thread);
+            return clear();
         }
 
-        private boolean write(@NonNull byte[] data) {
-            final long currentSize = this.size.getAndAdd(data.length);
+        /**
+         * @return 今の書き込みが止まっている時間（ミリ秒）。書き込み中でなければ 0
+         */
+        private long getStallTime() {
+            final long start = this.writeStart;
+            return start > 0 ? SystemClock.elapsedRealtime() - start : 0L;
+        }
+
+        /**
+         * @param data このクラスだけが使うデータ。書き込むと position が進む
+         * @return バッファをクリアしたら true
+         */
+        private boolean write(@NonNull ByteBuffer data) {
+            if (this.closed || this.finishing) {
+                // 流し切りと競合した書き込みも、捨てた分として数える
+                final int rejected = data.remaining();
+                this.rejectedSize.addAndGet(rejected);
+                this.droppedSize.addAndGet(rejected);
+                return false;
+            }
+
+            final int length = data.remaining();
+            if (length > this.largestData) {
+                this.largestData = length;
+            }
+            final long now = SystemClock.elapsedRealtime();
+            this.estimator.add(now, length);
+            this.inputSize.addAndGet(length);
+            if (this.maxLatency > 0) {
+                final long last = this.lastCapacityUpdate.get();
+                if (now - last >= BITRATE_BUCKET && this.lastCapacityUpdate.compareAndSet(last, now)) {
+                    updateCapacity(now);
+                }
+            }
+
+            final long currentSize = this.size.getAndAdd(length);
 
             boolean clear = (currentSize >= this.capacity);
             if (clear) {
-                removeMessages(MSG_DATA);
-                Log.w(TAG, (currentSize - data.length) + " bytes were dropped");
-                this.size.set(data.length);
+                final long dropped = clear();
+                this.droppedSize.addAndGet(dropped);
+                this.clears.incrementAndGet();
+                Log.w(TAG, dropped + " bytes were dropped");
+            }
+
+            this.queue.offer(data);
+            if (this.waiting) {
+                LockSupport.unpark(this.thread);
             }
 
-            sendMessage(obtainMessage(MSG_DATA, data));
+            if (this.onCongestion != null) {
+                final long last = this.lastEvaluation.get();
+                if (now - last >= CONGESTION_INTERVAL && this.estimator.isWarm(now) && this.lastEvaluation.compareAndSet(last, now)) {
+                    evaluateCongestion(now);
+                }
+            }
             return clear;
         }
 
+        /**
+         * 溜まっているデータを捨てる
+         *
+         * @return 捨てたバイト数
+         */
+        private long clear() {
+            long dropped = 0L;
+            while (true) {
+                final ByteBuffer data = this.queue.poll();
+                if (data == null) {
+                    break;
+                }
+                // 溜めたデータは書き込みを始める前に取り出すので、remaining() は溜めたときのまま
+                final int length = data.remaining();
+                this.size.addAndGet(-length);
+                dropped += length;
+            }
+            return dropped;
+        }
+
+        /**
+         * 見積もったビットレートから、溜めておく映像の長さが上限を超えないバッファサイズにする
+         */
+        private void updateCapacity(long now) {
+            if (!this.estimator.isWarm(now)) {
+                // 見積もりが安定するまでは上限のまま
+                return;
+            }
+            final long budget = this.estimator.getBitrate(now) / 8 * this.maxLatency / 1_000;
+            // キーフレーム 1 枚で溢れないようにする
+            final long lower = Math.min(2 * this.largestData, this.maxCapacity);
+            this.capacity = Math.max(lower, Math.min(budget, this.maxCapacity));
+        }
+
+        /**
+         * 詰まり具合を判定して、必要なら通知する
+         */
+        private void evaluateCongestion(long now) {
+            final CongestionEvent event = this.congestionDetector.evaluate(this.estimator.getBitrate(now), this.drainEstimator.getBitrate(now), this.size.get(), this.capacity);
+            if (event == null) {
+                return;
+            }
+            if (event.getLevel() != CongestionEvent.Level.OK) {
+                Log.w(TAG, "Congestion " + event);
+            }
+            this.onCongestion.accept(event);
+        }
+
+        /**
+         * バッファサイズの上限を変える。
+         * 溜まっているデータが新しいバッファサイズを超えていたら、書き込みを待たずに捨てる
+         */
+        private void setMaxCapacity(long maxCapacity) {
+            this.maxCapacity = maxCapacity;
+            if (this.maxLatency > 0 && this.estimator.isWarm(SystemClock.elapsedRealtime())) {
+                updateCapacity(SystemClock.elapsedRealtime());
+            } else {
+                this.capacity = maxCapacity;
+            }
+
+            if (this.size.get() > this.capacity) {
+                final long dropped = clear();
+                if (dropped > 0) {
+                    this.droppedSize.addAndGet(dropped);
+                    this.clears.incrementAndGet();
+                    Log.w(TAG, dropped + " bytes were dropped by shrinking capacity to " + this.capacity);
+                }
+            }
+        }
+
+        @NonNull
+        private UploaderMetrics getMetrics() {
+            return new UploaderMetrics(1, this.capacity, this.size.get(), getBitrate(), this.inputSize.get(), this.drainedSize.get(), this.droppedSize.get(), this.clears.get());
+        }
+
+        private long getCapacity() {
+            return this.capacity;
+        }
+
+        private long getQueuedSize() {
+            return this.size.get();
+        }
+
+        private long getBitrate() {
+            return this.estimator.getBitrate(SystemClock.elapsedRealtime());
+        }
+
+        /**
+         * @return 溜まっている映像の長さの見積もり（ミリ秒）。ビットレートが分からなければ -1
+         */
+        private long getQueuedDuration() {
+            final long bitrate = getBitrate();
+            if (bitrate <= 0) {
+                return -1;
+            }
+            return Math.max(0L, this.size.get()) * 8 * 1_000 / bitrate;
+        }
+
+        /**
+         * @return 書き込みに失敗して終わったら true
+         */
+        private boolean isFailed() {
+            return this.failed;
+        }
+
+        /**
+         * @return 止め始めた後に来たために受け付けなかったバイト数
+         */
+        private long getRejectedSize() {
+            return this.rejectedSize.get();
+        }
+
+        /**
+         * @return FFmpeg に渡せたか分からない、バッファに残っているかもしれないバイト数の上限
+         */
+        private long getUnflushedSize() {
+            return Math.min(this.unflushedSize, WRITE_BUFFER_SIZE);
+        }
+
+        /**
+         * 書き込みスレッドの終わりを少し待ってから出力を閉じる。
+         * バッファ付きの出力は書き込み中にロックを持ったまま止まるので、
+         * 書き込みスレッドが終わらなければ閉じない。先に FFmpeg を終了させておくこと
+         */
         @Override
         public void close() throws IOException {
             this.closed = true;
+            LockSupport.unpark(this.thread);
+            if (Thread.currentThread() != this.thread) {
+                try {
+                    this.thread.join(EXIT_GRACE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (this.thread.isAlive()) {
+                    Log.w(TAG, "Writer is still blocked, leave the pipe open");
+                    return;
+                }
+            }
             this.output.close();
         }
 
         @Override
-        public void handleMessage(Message msg) {
+        public void run() {
+            setThreadPriority(this.priority);
             try {
-                switch (msg.what) {
-                    case MSG_DATA: {
-                        upload((byte[]) msg.obj);
-                        break;
+                while (!this.closed) {
+                    final ByteBuffer data = this.queue.poll();
+                    if (data == null) {
+                        if (this.finishing) {
+                            // 入力を閉じると FFmpeg は出力を締めくくって終了する
+                            this.output.close();
+                            this.unflushedSize = 0L;
+                            break;
+                        }
+                        // 溜まっていた分を FFmpeg に届けてから待つ
+                        this.output.flush();
+                        this.unflushedSize = 0L;
+                        this.waiting = true;
+                        if (this.queue.isEmpty() && !this.closed && !this.finishing) {
+                            LockSupport.park(this);
+                        }
+                        this.waiting = false;
+                        continue;
                     }
+                    upload(data);
                 }
             } catch (IOException e) {
-                if (!this.closed) {
+                this.failed = true;
+                if (this.finishing) {
+                    Log.w(TAG, "Draining data to piped ffmpeg failed", e);
+                } else if (!this.closed) {
                     this.onError.accept(e);
                 }
             }
         }
 
-        private void upload(@NonNull byte[] data) throws IOException {
-            this.size.addAndGet(-data.length);
-            this.output.write(data);
+        private void upload(@NonNull ByteBuffer data) throws IOException {
+            final int length = data.remaining();
+            this.size.addAndGet(-length);
+            this.writeStart = SystemClock.elapsedRealtime();
+            try {
+                if (data.hasArray()) {
+                    this.output.write(data.array(), data.arrayOffset() + data.position(), length);
+                    this.unflushedSize += length;
+                } else {
+                    // メモリマップしたファイルなどはヒープに写さずに書き込む
+                    this.output.flush();
+                    this.unflushedSize = 0L;
+                    while (data.hasRemaining()) {
+                        this.channel.write(data);
+                    }
+                }
+            } finally {
+                this.writeStart = 0L;
+            }
+            this.drainEstimator.add(SystemClock.elapsedRealtime(), length);
+            this.drainedSize.addAndGet(length);
         }
 
     }
 
     /**
-     * FFmpeg の出力を読む
+     * FFmpeg の出力を読む。
+     * 行は使い回すバッファに読み込み、ログに出すのは一定時間あたりの行数までにする
      */
     private static final class Reader extends Handler implements Closeable {
 
-        private final BufferedReader input;
-        private final Consumer<String> onLineRead;
+        private final InputStream input;
+        @NonNull
+        private final String name;
+        private final boolean verbose;
+        @NonNull
+        private final LineRing ring;
+        @Nullable
+        private final Consumer<FFmpegErrorEvent> onFFmpegError;
         @NonNull
         private final Consumer<Exception> onError;
 
+        private final byte[] buffer;
+        private final byte[] line;
+        private int lineLength;
+
+        private long logWindowStart;
+        private int loggedLines;
+        private int suppressedLines;
+        /**
+         * 致命的なエラーの種類ごとに最後に通知した時刻
+         */
+        private final long[] lastReported;
+
+        private final CountDownLatch finished;
+
         private volatile boolean closed;
 
-        private Reader(@NonNull Looper looper, @NonNull BufferedReader input, @Nullable Consumer<String> onLineRead, @Nullable Consumer<Exception> onError) {
+        private Reader(@NonNull Looper looper, @NonNull InputStream input, @NonNull String name, boolean verbose, @NonNull LineRing ring, @Nullable Consumer<FFmpegErrorEvent> onFFmpegError, @Nullable Consumer<Exception> onError) {
             super(looper);
 
             this.input = input;
-            this.onLineRead = onLineRead;
+            this.name = name;
+            this.verbose = verbose;
+            this.ring = ring;
+            this.onFFmpegError = onFFmpegError;
             this.onError = (onError != null ? onError : (Exception e) -> Log.e(TAG, "Error occurred", e));
 
+            this.buffer = new byte[READ_BUFFER_SIZE];
+            this.line = new byte[MAX_LINE_LENGTH];
+            this.lineLength = 0;
+
+            this.logWindowStart = 0L;
+            this.loggedLines = 0;
+            this.suppressedLines = 0;
+            this.lastReported = new long[FFmpegErrorEvent.Type.values().length];
+            Arrays.fill(this.lastReported, -LOG_WINDOW);
+
+            this.finished = new CountDownLatch(1);
             this.closed = false;
         }
 
@@ -125,22 +518,100 @@ public class PipedFFmpegRunner {
             post(() -> {
                 try {
                     while (true) {
-                        final String line = input.readLine();
-                        if (line == null) {
+                        final int size = this.input.read(this.buffer);
+                        if (size < 0) {
                             break;
                         }
-                        if (this.onLineRead != null) {
-                            this.onLineRead.accept(line);
+                        for (int i = 0; i < size; i++) {
+                            final byte b = this.buffer[i];
+                            if (b == '\n' || b == '\r') {
+                                // 進捗表示は \r で区切られる
+                                endLine();
+                            } else if (this.lineLength < this.line.length) {
+                                this.line[this.lineLength++] = b;
+                            }
                         }
                     }
+                    endLine();
                 } catch (IOException e) {
                     if (!this.closed) {
                         this.onError.accept(e);
                     }
+                } finally {
+                    this.finished.countDown();
                 }
             });
         }
 
+        /**
+         * 出力を読み終わるのを待つ
+         *
+         * @param timeout 待つ時間（ミリ秒）
+         */
+        private void awaitFinished(long timeout) {
+            try {
+                this.finished.await(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void endLine() {
+            if (this.lineLength == 0) {
+                return;
+            }
+            final int length = this.lineLength;
+            this.lineLength = 0;
+
+            this.ring.add(this.line, length);
+
+            final FFmpegErrorEvent.Type type = FFmpegErrorEvent.Type.classify(this.line, length);
+            if (type != null) {
+                // 同じ種類のエラーは一定時間に一度だけ通知する
+                final long now = SystemClock.elapsedRealtime();
+                if (now - this.lastReported[type.ordinal()] < LOG_WINDOW) {
+                    this.suppressedLines++;
+                    return;
+                }
+                this.lastReported[type.ordinal()] = now;
+                final String text = new String(this.line, 0, length, UTF_8);
+                Log.w(TAG, "FFmpeg " + this.name + " reported " + type + ": " + text);
+                if (this.onFFmpegError != null) {
+                    this.onFFmpegError.accept(new FFmpegErrorEvent(type, text));
+                }
+                return;
+            }
+
+            log(length);
+        }
+
+        /**
+         * 一定時間あたりの行数を超えない範囲でログに出す
+         */
+        private void log(int length) {
+            final long now = SystemClock.elapsedRealtime();
+            if (now - this.logWindowStart >= LOG_WINDOW) {
+                if (this.suppressedLines > 0) {
+                    Log.w(TAG, this.suppressedLines + " lines of ffmpeg " + this.name + " were not logged");
+                }
+                this.logWindowStart = now;
+                this.loggedLines = 0;
+                this.suppressedLines = 0;
+            }
+            if (this.loggedLines >= MAX_LOG_LINES) {
+                this.suppressedLines++;
+                return;
+            }
+            this.loggedLines++;
+
+            final String message = "FFmpeg " + this.name + ": " + new String(this.line, 0, length, UTF_8);
+            if (this.verbose) {
+                Log.v(TAG, message);
+            } else {
+                Log.w(TAG, message);
+            }
+        }
+
         @Override
         public void close() throws IOException {
             this.closed = true;
@@ -149,19 +620,143 @@ public class PipedFFmpegRunner {
 
     }
 
+    // 状態
+    private static final int STOPPED = 0;
+    private static final int STARTING = 1;
+    private static final int RUNNING = 2;
+    private static final int STOPPING = 3;
+
     public PipedFFmpegRunner() {
+        this.state = new AtomicInteger(STOPPED);
+        this.currentRun = new AtomicReference<>(null);
+        this.diagnosticLines = new LineRing(DIAGNOSTIC_LINES, MAX_LINE_LENGTH);
+        this.writerPriority = android.os.Process.THREAD_PRIORITY_DEFAULT;
+        this.readerPriority = android.os.Process.THREAD_PRIORITY_DEFAULT;
+        this.ffmpegNice = 0;
+        this.ffmpegAffinity = 0L;
     }
 
+    /**
+     * 状態遷移は compareAndSet で行う
+     */
+    private final AtomicInteger state;
+    /**
+     * 動かすたびに作る印。動いている間だけ入っている。
+     * 止めるのは、これを compareAndSet で取り除けた方だけが行う。
+     * そうすることで、前に動かしたときの終了検知が今動いているものに触らないようにする
+     */
+    private final AtomicReference<Object> currentRun;
+
+    @Nullable
+    private volatile Consumer<CongestionEvent> onCongestion;
+    @Nullable
+    private volatile Consumer<FFmpegErrorEvent> onFFmpegError;
+    /**
+     * 止めた後も次に動かすまで残す
+     */
+    @NonNull
+    private volatile LineRing diagnosticLines;
+
+    @Nullable
+    private volatile FFmpegExitException lastExit;
+
+    private volatile int writerPriority;
+    private volatile int readerPriority;
+    private volatile int ffmpegNice;
+    private volatile long ffmpegAffinity;
+
     private Process process;
-    private Writer writer;
+    private CountDownLatch exited;
+    private volatile Writer writer;
     private Reader stdoutReader;
     private Reader stderrReader;
 
+    /**
+     * 書き込みの詰まり具合の通知先を設定する。
+     * 次に動かしたときから有効になる。
+     * 通知は {@link #write(byte[])} を呼んだスレッドで行われる
+     *
+     * @param onCongestion 詰まり具合が変わったときに実行される関数
+     */
+    public void setOnCongestion(@Nullable Consumer<CongestionEvent> onCongestion) {
+        this.onCongestion = onCongestion;
+    }
+
+    /**
+     * FFmpeg が致命的なエラーを出力したときの通知先を設定する。
+     * 次に動かしたときから有効になる。
+     * 通知は FFmpeg の出力を読むスレッドで行われる
+     *
+     * @param onFFmpegError FFmpeg が致命的なエラーを出力したときに実行される関数
+     */
+    public void setOnFFmpegError(@Nullable Consumer<FFmpegErrorEvent> onFFmpegError) {
+        this.onFFmpegError = onFFmpegError;
+    }
+
+    /**
+     * 書き込みスレッドの優先度を設定する。
+     * 次に動かしたときから有効になる。
+     * 他の処理に押されて書き込みが遅れ、バッファがクリアされるのを防ぐのに使う
+     *
+     * @param writerPriority {@link android.os.Process#setThreadPriority(int)} の値。{@link android.os.Process#THREAD_PRIORITY_AUDIO} など
+     */
+    public void setWriterPriority(int writerPriority) {
+        this.writerPriority = writerPriority;
+    }
+
+    /**
+     * FFmpeg の出力を読むスレッドの優先度を設定する。
+     * 次に動かしたときから有効になる
+     *
+     * @param readerPriority {@link android.os.Process#setThreadPriority(int)} の値。{@link android.os.Process#THREAD_PRIORITY_BACKGROUND} など
+     */
+    public void setReaderPriority(int readerPriority) {
+        this.readerPriority = readerPriority;
+    }
+
+    /**
+     * FFmpeg の nice 値を設定する。
+     * 次に動かしたときから有効になる。
+     * nice コマンドが無ければ無視する
+     *
+     * @param ffmpegNice nice 値。0 なら変えない。アプリからは正の値（優先度を下げる）しか指定できないことが多い
+     */
+    public void setFFmpegNice(int ffmpegNice) {
+        this.ffmpegNice = ffmpegNice;
+    }
+
+    /**
+     * FFmpeg を動かす CPU を設定する。
+     * 次に動かしたときから有効になる。
+     * taskset コマンドが無ければ無視する
+     *
+     * @param ffmpegAffinity 使う CPU のビットを立てた値。0 なら変えない
+     */
+    public void setFFmpegAffinity(long ffmpegAffinity) {
+        this.ffmpegAffinity = ffmpegAffinity;
+    }
+
+    /**
+     * @return FFmpeg が最後に出力した何行か。古い順。止めた後も次に動かすまでは取れる
+     */
+    @NonNull
+    public List<String> getDiagnosticLines() {
+        return this.diagnosticLines.getLines();
+    }
+
+    /**
+     * @return 直近で動かしたときに FFmpeg が途中で終了していたらその情報。そうでなければ null
+     */
+    @Nullable
+    public FFmpegExitException getLastExit() {
+        return this.lastExit;
+    }
+
     /**
      * @return 動いてたら true
      */
-    public synchronized boolean isRunning() {
-        return this.writer != null;
+    public boolean isRunning() {
+        return this.state.get() == RUNNING;
     }
 
     /**
@@ -175,61 +770,311 @@ public class PipedFFmpegRunner {
      * @return 動かしたら true
      * @throws IOException FFmpeg の実行エラー
      */
-    public synchronized boolean start(@NonNull File ffmpeg, @NonNull String[] args, @Nullable Consumer<Exception> onError, long capacity) throws IOException {
-        if (this.writer != null) {
+    public boolean start(@NonNull File ffmpeg, @NonNull String[] args, @Nullable Consumer<Exception> onError, long capacity) throws IOException {
+        return start(ffmpeg, args, onError, capacity, 0L);
+    }
+
+    /**
+     * 溜めておく映像の長さを指定して動かす。
+     * バッファサイズは入力のビットレートから決め、随時変える。
+     * 既に動いてたら何もしない
+     *
+     * @param ffmpeg      FFmpeg の実行可能バイナリ
+     * @param args        FFmpeg の実行引数
+     * @param onError     エラー時に実行される関数
+     * @param maxLatency  溜めておく映像の長さの上限（ミリ秒）
+     * @param maxCapacity バッファサイズの上限
+     * @return 動かしたら true
+     * @throws IOException FFmpeg の実行エラー
+     */
+    public boolean startWithLatency(@NonNull File ffmpeg, @NonNull String[] args, @Nullable Consumer<Exception> onError, long maxLatency, long maxCapacity) throws IOException {
+        if (maxLatency <= 0) {
+            throw new IllegalArgumentException("maxLatency must be positive: " + maxLatency);
+        }
+        return start(ffmpeg, args, onError, maxCapacity, maxLatency);
+    }
+
+    private boolean start(@NonNull File ffmpeg, @NonNull String[] args, @Nullable Consumer<Exception> onError, long capacity, long maxLatency) throws IOException {
+        if (!this.state.compareAndSet(STOPPED, STARTING)) {
             return false;
         }
 
-        final String[] command = new String[1 + args.length];
-        command[0] = ffmpeg.getAbsolutePath();
-        System.arraycopy(args, 0, command, 1, args.length);
-        Log.v(TAG, "Execute " + Arrays.toString(command));
-        this.process = new ProcessBuilder(command).start();
+        final List<String> command = new ArrayList<>();
+        addPlacement(command, this.ffmpegNice, this.ffmpegAffinity);
+        command.add(ffmpeg.getAbsolutePath());
+        command.addAll(Arrays.asList(args));
+        Log.v(TAG, "Execute " + command);
+        try {
+            this.process = new ProcessBuilder(command).start();
+        } catch (IOException e) {
+            this.state.set(STOPPED);
+            throw e;
+        }
 
-        // パイプ書き込みはブロックすることも多いので自前のスレッドを使う
-        final HandlerThread writerThread = new HandlerThread(getClass().getName() + ":writer");
         // パイプ読み込みはブロックするので自前のスレッドを使う
-        final HandlerThread stdoutThread = new HandlerThread(getClass().getName() + ":stdout");
-        final HandlerThread stderrThread = new HandlerThread(getClass().getName() + ":stderr");
+        final HandlerThread stdoutThread = new HandlerThread(getClass().getName() + ":stdout", this.readerPriority);
+        final HandlerThread stderrThread = new HandlerThread(getClass().getName() + ":stderr", this.readerPriority);
 
-        writerThread.start();
         stdoutThread.start();
         stderrThread.start();
 
-        this.writer = new Writer(writerThread.getLooper(), new BufferedOutputStream(this.process.getOutputStream()), (onError != null ? onError : (Exception e) -> Log.e(TAG, "Writing data to piped ffmpeg failed", e)), capacity);
-        this.stdoutReader = new Reader(stdoutThread.getLooper(), new BufferedReader(new InputStreamReader(process.getInputStream())), (String line) -> Log.v(TAG, "FFmpeg stdout: " + line), (Exception e) -> Log.w(TAG, "Reading ffmpeg stdout failed", e));
-        this.stderrReader = new Reader(stderrThread.getLooper(), new BufferedReader(new InputStreamReader(process.getErrorStream())), (String line) -> Log.w(TAG, "FFmpeg stderr: " + line), (Exception e) -> Log.w(TAG, "Reading ffmpeg stderr failed", e));
+        // パイプ書き込みはブロックすることも多いので自前のスレッドを使う
+        final Consumer<Exception> reportError = (onError != null ? onError : (Exception e) -> Log.e(TAG, "Writing data to piped ffmpeg failed", e));
+        // エラーの通知は一度だけにする
+        final AtomicBoolean reported = new AtomicBoolean(false);
+        final CountDownLatch exited = new CountDownLatch(1);
+        final Process process = this.process;
+        final Writer writer = new Writer(getClass().getName() + ":writer", process.getOutputStream(), (Exception e) -> {
+            // FFmpeg が終了したせいなら、終了の方を通知する
+            if (awaitQuietly(exited, EXIT_GRACE)) {
+                return;
+            }
+            if (reported.compareAndSet(false, true)) {
+                reportError.accept(e);
+            }
+        }, capacity, maxLatency, this.onCongestion, this.writerPriority);
+        final LineRing diagnosticLines = new LineRing(DIAGNOSTIC_LINES, MAX_LINE_LENGTH);
+        this.stdoutReader = new Reader(stdoutThread.getLooper(), this.process.getInputStream(), "stdout", true, diagnosticLines, this.onFFmpegError, (Exception e) -> Log.w(TAG, "Reading ffmpeg stdout failed", e));
+        this.stderrReader = new Reader(stderrThread.getLooper(), this.process.getErrorStream(), "stderr", false, diagnosticLines, this.onFFmpegError, (Exception e) -> Log.w(TAG, "Reading ffmpeg stderr failed", e));
+        this.diagnosticLines = diagnosticLines;
+        writer.start();
         this.stdoutReader.start();
         this.stderrReader.start();
 
+        this.writer = writer;
+        this.exited = exited;
+        this.lastExit = null;
+        // 止められるようにしてから RUNNING にする。
+        // isRunning() が true なら必ず stop() で止められるようにするため。
+        // その間に止められていたら状態は STOPPING 以降になっているので、上書きしない
+        final Object run = new Object();
+        this.currentRun.set(run);
+        this.state.compareAndSet(STARTING, RUNNING);
+
+        // 終了をすぐに検知できるように、終了を待つスレッドを用意する
+        final Reader stderrReader = this.stderrReader;
+        final Thread watcher = new Thread(() -> {
+            final int status;
+            try {
+                status = process.waitFor();
+            } catch (InterruptedException e) {
+                return;
+            }
+            final long exitTime = SystemClock.elapsedRealtime();
+            exited.countDown();
+            if (!this.currentRun.compareAndSet(run, null)) {
+                // 止めたので終了した。止めた後に動かし直していても、状態には触らない
+                return;
+            }
+            this.state.set(STOPPING);
+
+            // 書き込み待ちのデータを解放する
+            final long dropped = writer.abort();
+            stderrReader.awaitFinished(EXIT_GRACE);
+            final List<String> lines = diagnosticLines.getLines();
+            tearDown();
+
+            final FFmpegExitException exit = new FFmpegExitException(status, lines, SystemClock.elapsedRealtime() - exitTime);
+            this.lastExit = exit;
+            Log.w(TAG, "FFmpeg exited with " + status + ", " + dropped + " bytes were dropped, detected in " + exit.getDetectionLatency() + "ms");
+            if (reported.compareAndSet(false, true)) {
+                reportError.accept(exit);
+            }
+        }, getClass().getName() + ":watcher");
+        watcher.start();
         return true;
     }
 
+    /**
+     * FFmpeg の入力の一番内側の FileOutputStream を取り出す。
+     * Android 7.0 以降では Process の入力はバッファ付きの出力に包まれているので、そのまま使うと二重にバッファされ、
+     * 配列を持たないデータもヒープの配列に写される。
+     * 包んでいる出力にはまだ何も書いていないので、飛ばして書いても順番は崩れない
+     *
+     * @param output Process の入力
+     * @return 取り出した FileOutputStream。取り出せなければ output
+     */
+    @NonNull
+    static OutputStream unwrap(@NonNull OutputStream output) {
+        OutputStream current = output;
+        try {
+            final Field field = FilterOutputStream.class.getDeclaredField("out");
+            field.setAccessible(true);
+            while (current instanceof FilterOutputStream) {
+                final Object inner = field.get(current);
+                if (!(inner instanceof OutputStream)) {
+                    break;
+                }
+                current = (OutputStream) inner;
+            }
+        } catch (NoSuchFieldException | IllegalAccessException | RuntimeException e) {
+            Log.w(TAG, "Unwrapping ffmpeg input failed, data will be copied into heap", e);
+            return output;
+        }
+        if (!(current instanceof FileOutputStream)) {
+            Log.w(TAG, "FFmpeg input is not a file stream, data will be copied into heap: " + current.getClass().getName());
+            return output;
+        }
+        return current;
+    }
+
+    /**
+     * nice 値や CPU の指定があれば、それを行うコマンドを前に付ける
+     */
+    private static void addPlacement(@NonNull List<String> command, int nice, long affinity) {
+        if (affinity != 0) {
+            final File taskset = findTool("taskset");
+            if (taskset != null) {
+                command.add(taskset.getPath());
+                command.add(Long.toHexString(affinity));
+            } else {
+                Log.w(TAG, "taskset is not available, ignore CPU affinity");
+            }
+        }
+        if (nice != 0) {
+            final File niceTool = findTool("nice");
+            if (niceTool != null) {
+                command.add(niceTool.getPath());
+                command.add("-n");
+                command.add(String.valueOf(nice));
+            } else {
+                Log.w(TAG, "nice is not available, ignore nice value");
+            }
+        }
+    }
+
+    @Nullable
+    private static File findTool(@NonNull String name) {
+        for (String dir : TOOL_DIRS) {
+            final File tool = new File(dir, name);
+            if (tool.canExecute()) {
+                return tool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 呼んだスレッドの優先度を変える。変えられなくても続ける
+     */
+    private static void setThreadPriority(int priority) {
+        try {
+            android.os.Process.setThreadPriority(priority);
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.w(TAG, "Setting thread priority to " + priority + " failed", e);
+        }
+    }
+
+    private static boolean awaitQuietly(@NonNull CountDownLatch latch, long timeout) {
+        try {
+            return latch.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     /**
      * 止める。
      * 既に止まってたら何もしない
      *
      * @return 止めたら true
      */
-    public synchronized boolean stop() {
-        if (this.writer == null) {
+    public boolean stop() {
+        if (!claimRun()) {
             return false;
         }
+        tearDown();
+        return true;
+    }
+
+    /**
+     * 溜まっているデータを流し切ってから止める。
+     * 入力を受け付けるのをやめ、溜まっているデータを FFmpeg に渡し、FFmpeg の入力を閉じて終了を待つ。
+     * 期限までに終わらなければ、残りのデータを捨てて FFmpeg を強制終了する。
+     * 既に止まってたら何もしない
+     *
+     * @param drainTimeout 期限（ミリ秒）
+     * @return 結果。既に止まってたら null
+     */
+    @Nullable
+    public DrainResult stop(long drainTimeout) {
+        if (!claimRun()) {
+            return null;
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        final long deadline = start + drainTimeout;
+        final Writer writer = this.writer;
+        final long drainedBefore = writer.getMetrics().getDrainedSize();
+        final long rejectedBefore = writer.getRejectedSize();
+
+        final boolean finished = writer.finish(drainTimeout);
+        // 期限切れや書き込みの失敗で残った分は捨てる
+        long discarded = writer.abort();
+        long lost = 0L;
+        if (!finished || writer.isFailed()) {
+            // バッファに残っていたかもしれない分は渡せなかったことにする
+            lost = writer.getUnflushedSize();
+        }
+        discarded += lost;
+        // 流し切っている間に来て受け付けなかった分も捨てたことにする
+        discarded += writer.getRejectedSize() - rejectedBefore;
+
+        boolean clean = finished && !writer.isFailed() && discarded == 0;
+        if (clean) {
+            clean = awaitQuietly(this.exited, Math.max(0L, deadline - SystemClock.elapsedRealtime())) && this.process.exitValue() == 0;
+        }
+
+        final long drained = Math.max(0L, writer.getMetrics().getDrainedSize() - drainedBefore - lost);
+        tearDown();
+
+        final DrainResult result = new DrainResult(drained, discarded, clean, SystemClock.elapsedRealtime() - start);
+        Log.i(TAG, "Stopped " + result);
+        return result;
+    }
+
+    /**
+     * 今動いている分を止める役を取り、状態を STOPPING にする
+     *
+     * @return 取れたら true。動いてないか、既に他で止めていたら false
+     */
+    private boolean claimRun() {
+        while (true) {
+            final Object run = this.currentRun.get();
+            if (run == null) {
+                return false;
+            } else if (this.currentRun.compareAndSet(run, null)) {
+                this.state.set(STOPPING);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 後始末をする。
+     * 状態が STOPPING のときに呼ぶ
+     */
+    private void tearDown() {
+        // 先に外して、以降の書き込みを受け付けない
+        final Writer writer = this.writer;
+        this.writer = null;
 
-        this.writer.getLooper().quit();
         this.stdoutReader.getLooper().quit();
         this.stderrReader.getLooper().quit();
 
-        closeWithoutException(this.writer);
+        // 書き込みスレッドがパイプへの書き込みで止まっていても抜けられるように、先に FFmpeg を終了させる
+        this.process.destroy();
+
+        closeWithoutException(writer);
         closeWithoutException(this.stdoutReader);
         closeWithoutException(this.stderrReader);
 
-        this.process.destroy();
-
-        this.writer = null;
         this.stdoutReader = null;
         this.stderrReader = null;
-        return true;
+        this.process = null;
+        this.exited = null;
+        this.state.set(STOPPED);
     }
 
     private void closeWithoutException(@NonNull Closeable closeable) {
@@ -246,11 +1091,95 @@ public class PipedFFmpegRunner {
      * @param data データ
      * @return バッファをクリアしたら true
      */
-    public synchronized boolean write(@NonNull byte[] data) {
-        if (this.writer == null) {
+    public boolean write(@NonNull byte[] data) {
+        final Writer writer = this.writer;
+        if (writer == null) {
+            return false;
+        }
+        return writer.write(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * データをパイプに書き込む。
+     * 書き込み終わるまでデータの中身を変えてはいけない。
+     * データの position と limit は変えないので、同じデータを続けて渡してもよい。
+     * 配列を持たないデータ（メモリマップしたファイルなど）は、FFmpeg の入力から FileOutputStream を取り出せればヒープに写さずに書き込む
+     *
+     * @param data データ。position から limit までを書き込む
+     * @return バッファをクリアしたら true
+     */
+    public boolean write(@NonNull ByteBuffer data) {
+        final Writer writer = this.writer;
+        if (writer == null) {
             return false;
         }
-        return this.writer.write(data);
+        // 呼び出し側の position を動かさないように、また同じデータを何度渡されてもよいように、複製を溜める
+        return writer.write(data.duplicate());
+    }
+
+    /**
+     * バッファサイズの上限を変える。
+     * 溜めておく映像の長さを指定して動かしている場合は、その上限の中でバッファサイズを決める。
+     * 溜まっているデータが新しいバッファサイズを超えていたら捨てる
+     *
+     * @param maxCapacity バッファサイズの上限
+     */
+    public void setMaxCapacity(long maxCapacity) {
+        final Writer writer = this.writer;
+        if (writer != null) {
+            writer.setMaxCapacity(maxCapacity);
+        }
+    }
+
+    /**
+     * @return 統計情報。動いてなければ {@link UploaderMetrics#EMPTY}
+     */
+    @NonNull
+    public UploaderMetrics getMetrics() {
+        final Writer writer = this.writer;
+        return writer != null ? writer.getMetrics() : UploaderMetrics.EMPTY;
+    }
+
+    /**
+     * パイプの詰まりを調べるのに使う
+     *
+     * @return FFmpeg への今の書き込みが止まっている時間（ミリ秒）。書き込み中でなければ 0
+     */
+    public long getWriteStallTime() {
+        final Writer writer = this.writer;
+        return writer != null ? writer.getStallTime() : 0L;
+    }
+
+    /**
+     * @return 現在のバッファサイズ。動いてなければ 0
+     */
+    public long getCapacity() {
+        final Writer writer = this.writer;
+        return writer != null ? writer.getCapacity() : 0L;
+    }
+
+    /**
+     * @return 溜まっているデータのバイト数。動いてなければ 0
+     */
+    public long getQueuedSize() {
+        final Writer writer = this.writer;
+        return writer != null ? writer.getQueuedSize() : 0L;
+    }
+
+    /**
+     * @return 見積もった入力のビットレート（bps）。動いてなければ 0
+     */
+    public long getBitrate() {
+        final Writer writer = this.writer;
+        return writer != null ? writer.getBitrate() : 0L;
+    }
+
+    /**
+     * @return 溜まっている映像の長さの見積もり（ミリ秒）。分からなければ -1
+     */
+    public long getQueuedDuration() {
+        final Writer writer = this.writer;
+        return writer != null ? writer.getQueuedDuration() : -1L;
     }
 
 }
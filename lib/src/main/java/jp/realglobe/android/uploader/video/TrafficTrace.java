@@ -0,0 +1,85 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 映像データの送信記録の形式。
+ * <pre>
+ * ヘッダ: MAGIC(int) VERSION(int) フラグ(byte) 記録開始時刻(long, エポックミリ秒)
+ * 記録:   前の記録からの経過時間(可変長, マイクロ秒) バイト数(可変長) NAL ユニットの種類(可変長, 種類ごとのビット) [データ]
+ * </pre>
+ * データはフラグに FLAG_PAYLOAD が立っているときだけ記録する
+ */
+final class TrafficTrace {
+
+    static final int MAGIC = 0x41565452; // AVTR
+    static final int VERSION = 1;
+    static final int FLAG_PAYLOAD = 1;
+
+    private TrafficTrace() {
+    }
+
+    /**
+     * データに含まれる NAL ユニットの種類を調べる
+     *
+     * @param data 生の H264 映像データ
+     * @return 含まれる種類のビットを立てた値
+     */
+    static int getNalTypes(@NonNull ByteBuffer data) {
+        int types = 0;
+        final int end = data.limit();
+        for (int i = data.position(); i + 3 < end; i++) {
+            if (data.get(i + 2) > 1) {
+                i += 2;
+                continue;
+            }
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                types |= 1 << (data.get(i + 3) & 0x1f);
+                i += 3;
+            }
+        }
+        return types;
+    }
+
+    static void writeVarLong(@NonNull DataOutput output, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            output.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    static long readVarLong(@NonNull DataInput input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed variable length number");
+    }
+
+}
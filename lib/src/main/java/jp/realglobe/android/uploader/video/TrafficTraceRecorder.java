@@ -0,0 +1,112 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import jp.realglobe.android.logger.simple.Log;
+
+/**
+ * 映像データの送信を記録する。
+ * 送信した時刻、バイト数、NAL ユニットの種類と、必要ならデータそのものを記録する。
+ * 記録したものは {@link TrafficTraceReplayer} で再生できる
+ */
+public final class TrafficTraceRecorder implements Closeable {
+
+    private static final String TAG = TrafficTraceRecorder.class.getName();
+
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    private final DataOutputStream output;
+    private final boolean payload;
+    // 配列を持たないデータを書き写すための作業領域
+    private final byte[] copyBuffer;
+
+    private long previous;
+    private boolean closed;
+
+    /**
+     * @param path    記録先
+     * @param payload データそのものも記録するなら true
+     * @throws IOException 書き込みエラー
+     */
+    public TrafficTraceRecorder(@NonNull File path, boolean payload) throws IOException {
+        this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        this.payload = payload;
+        this.copyBuffer = payload ? new byte[COPY_BUFFER_SIZE] : null;
+
+        this.output.writeInt(TrafficTrace.MAGIC);
+        this.output.writeInt(TrafficTrace.VERSION);
+        this.output.writeByte(payload ? TrafficTrace.FLAG_PAYLOAD : 0);
+        this.output.writeLong(System.currentTimeMillis());
+
+        this.previous = System.nanoTime();
+        this.closed = false;
+    }
+
+    /**
+     * 送信を記録する。
+     * 書き込みに失敗したら以降は記録しない
+     *
+     * @param data 送信した映像データ。position から limit までを記録し、position は変えない
+     */
+    public synchronized void record(@NonNull ByteBuffer data) {
+        if (this.closed) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        final long delta = (now - this.previous) / 1_000;
+        // 切り捨てた端数を次に持ち越して、差分の和が実際の経過時間からずれていかないようにする
+        this.previous += delta * 1_000;
+        try {
+            TrafficTrace.writeVarLong(this.output, delta);
+            TrafficTrace.writeVarLong(this.output, data.remaining());
+            TrafficTrace.writeVarLong(this.output, TrafficTrace.getNalTypes(data) & 0xffffffffL);
+            if (this.payload) {
+                if (data.hasArray()) {
+                    this.output.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                } else {
+                    final ByteBuffer source = data.duplicate();
+                    while (source.hasRemaining()) {
+                        final int size = Math.min(source.remaining(), this.copyBuffer.length);
+                        source.get(this.copyBuffer, 0, size);
+                        this.output.write(this.copyBuffer, 0, size);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Recording traffic failed", e);
+            this.closed = true;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.closed = true;
+        this.output.close();
+    }
+
+}
@@ -0,0 +1,337 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import jp.realglobe.android.logger.simple.Log;
+
+/**
+ * {@link TrafficTraceRecorder} で記録した送信を同じ間隔で再生する。
+ * 送信先には FFmpeg の代わりにデータを捨てるだけのプロセスを使うと、ネットワークに左右されずに比べられる。
+ * データを記録していなければ、記録したバイト数と NAL ユニットの種類で中身がほぼ 0 のデータを作って送る
+ */
+public final class TrafficTraceReplayer {
+
+    private static final String TAG = TrafficTraceReplayer.class.getName();
+
+    /**
+     * 再生結果
+     */
+    public static final class Report {
+
+        private final int records;
+        private final long sentSize;
+        private final int clears;
+        private final long droppedSize;
+        private final long maxQueuedSize;
+        private final long averageQueuedSize;
+        private final long maxQueuedDuration;
+        private final long maxLag;
+        private final long elapsed;
+
+        private Report(int records, long sentSize, int clears, long droppedSize, long maxQueuedSize, long averageQueuedSize, long maxQueuedDuration, long maxLag, long elapsed) {
+            this.records = records;
+            this.sentSize = sentSize;
+            this.clears = clears;
+            this.droppedSize = droppedSize;
+            this.maxQueuedSize = maxQueuedSize;
+            this.averageQueuedSize = averageQueuedSize;
+            this.maxQueuedDuration = maxQueuedDuration;
+            this.maxLag = maxLag;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * @return 送った回数
+         */
+        public int getRecords() {
+            return this.records;
+        }
+
+        /**
+         * @return 送ったバイト数
+         */
+        public long getSentSize() {
+            return this.sentSize;
+        }
+
+        /**
+         * @return バッファをクリアした回数
+         */
+        public int getClears() {
+            return this.clears;
+        }
+
+        /**
+         * @return 捨てられたバイト数
+         */
+        public long getDroppedSize() {
+            return this.droppedSize;
+        }
+
+        /**
+         * @return 送った直後に溜まっていたバイト数の最大
+         */
+        public long getMaxQueuedSize() {
+            return this.maxQueuedSize;
+        }
+
+        /**
+         * @return 送った直後に溜まっていたバイト数の平均
+         */
+        public long getAverageQueuedSize() {
+            return this.averageQueuedSize;
+        }
+
+        /**
+         * @return 送った直後に溜まっていた映像の長さの見積もりの最大（ミリ秒）。遅延の目安
+         */
+        public long getMaxQueuedDuration() {
+            return this.maxQueuedDuration;
+        }
+
+        /**
+         * @return 記録した時刻から送るのが遅れた時間の最大（ミリ秒）。送る側が詰まっていないかの目安
+         */
+        public long getMaxLag() {
+            return this.maxLag;
+        }
+
+        /**
+         * @return 再生にかかった時間（ミリ秒）
+         */
+        public long getElapsed() {
+            return this.elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return this.records + " records, " + this.sentSize + " bytes in " + this.elapsed + "ms"
+                    + ", clears " + this.clears + ", dropped " + this.droppedSize + " bytes"
+                    + ", queued max " + this.maxQueuedSize + " avg " + this.averageQueuedSize + " bytes"
+                    + ", queued duration max " + this.maxQueuedDuration + "ms"
+                    + ", lag max " + this.maxLag + "ms";
+        }
+
+    }
+
+    /**
+     * 再生先
+     */
+    private interface Target {
+
+        boolean send(@NonNull ByteBuffer data);
+
+        @NonNull
+        UploaderMetrics getMetrics();
+
+        long getQueuedDuration();
+
+    }
+
+    private final File path;
+
+    /**
+     * 中身を作るときの元にする NAL ユニットの種類ごとのデータ。
+     * 送ったデータは書き込み終わるまで参照されるので、中身は変えずに足りなくなったら作り直す
+     */
+    private final byte[][] templates;
+
+    /**
+     * @param path 記録
+     */
+    public TrafficTraceReplayer(@NonNull File path) {
+        this.path = path;
+        this.templates = new byte[32][];
+    }
+
+    /**
+     * アップロードに対して再生する
+     *
+     * @param uploader 動いているアップロード
+     * @param speed    再生速度。1 で記録と同じ間隔
+     * @return 再生結果
+     * @throws IOException 読み込みエラー
+     */
+    @NonNull
+    @WorkerThread
+    public Report replay(@NonNull final FFmpegRtmpUploader uploader, double speed) throws IOException {
+        return replay(new Target() {
+            @Override
+            public boolean send(@NonNull ByteBuffer data) {
+                return uploader.sendVideo(data);
+            }
+
+            @NonNull
+            @Override
+            public UploaderMetrics getMetrics() {
+                return uploader.getMetrics();
+            }
+
+            @Override
+            public long getQueuedDuration() {
+                return uploader.getQueuedDuration();
+            }
+        }, speed);
+    }
+
+    /**
+     * FFmpeg へのパイプに対して再生する
+     *
+     * @param runner 動いているパイプ
+     * @param speed  再生速度。1 で記録と同じ間隔
+     * @return 再生結果
+     * @throws IOException 読み込みエラー
+     */
+    @NonNull
+    @WorkerThread
+    public Report replay(@NonNull final PipedFFmpegRunner runner, double speed) throws IOException {
+        return replay(new Target() {
+            @Override
+            public boolean send(@NonNull ByteBuffer data) {
+                return runner.write(data);
+            }
+
+            @NonNull
+            @Override
+            public UploaderMetrics getMetrics() {
+                return runner.getMetrics();
+            }
+
+            @Override
+            public long getQueuedDuration() {
+                return runner.getQueuedDuration();
+            }
+        }, speed);
+    }
+
+    @NonNull
+    private Report replay(@NonNull Target target, double speed) throws IOException {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("speed must be positive: " + speed);
+        }
+
+        try (final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.path)))) {
+            if (input.readInt() != TrafficTrace.MAGIC || input.readInt() != TrafficTrace.VERSION) {
+                throw new IOException(this.path + " is not a traffic trace");
+            }
+            final boolean payload = (input.readByte() & TrafficTrace.FLAG_PAYLOAD) != 0;
+            input.readLong();
+
+            final long droppedBefore = target.getMetrics().getDroppedSize();
+            int records = 0;
+            long sentSize = 0;
+            int clears = 0;
+            long maxQueuedSize = 0;
+            long queuedSizeSum = 0;
+            long maxQueuedDuration = -1;
+            long maxLag = 0;
+
+            final long start = System.nanoTime();
+            long scheduled = start;
+            while (true) {
+                final long delta;
+                try {
+                    delta = TrafficTrace.readVarLong(input);
+                } catch (EOFException e) {
+                    break;
+                }
+                final int size = (int) TrafficTrace.readVarLong(input);
+                final int types = (int) TrafficTrace.readVarLong(input);
+                final ByteBuffer data;
+                if (payload) {
+                    final byte[] buff = new byte[size];
+                    input.readFully(buff);
+                    data = ByteBuffer.wrap(buff);
+                } else {
+                    data = synthesize(size, types);
+                }
+
+                scheduled += (long) (delta * 1_000 / speed);
+                final long lag = waitUntil(scheduled);
+                maxLag = Math.max(maxLag, lag);
+
+                if (target.send(data)) {
+                    clears++;
+                }
+                records++;
+                sentSize += size;
+
+                final UploaderMetrics metrics = target.getMetrics();
+                maxQueuedSize = Math.max(maxQueuedSize, metrics.getQueuedSize());
+                queuedSizeSum += metrics.getQueuedSize();
+                maxQueuedDuration = Math.max(maxQueuedDuration, target.getQueuedDuration());
+            }
+
+            final long elapsed = (System.nanoTime() - start) / 1_000_000;
+            final Report report = new Report(records, sentSize, clears, target.getMetrics().getDroppedSize() - droppedBefore,
+                    maxQueuedSize, records > 0 ? queuedSizeSum / records : 0L, maxQueuedDuration, maxLag / 1_000_000, elapsed);
+            Log.i(TAG, "Replayed " + this.path + ": " + report);
+            return report;
+        }
+    }
+
+    /**
+     * 指定時刻まで待つ
+     *
+     * @param deadline System.nanoTime() での時刻
+     * @return 指定時刻から過ぎていた時間（ナノ秒）
+     */
+    private static long waitUntil(long deadline) {
+        while (true) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return -remaining;
+            }
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * スタートコードと NAL ユニットのヘッダだけを持つデータを作る
+     *
+     * @param size  バイト数
+     * @param types 含まれる NAL ユニットの種類
+     * @return データ
+     */
+    @NonNull
+    private ByteBuffer synthesize(int size, int types) {
+        final int type = types != 0 ? Integer.numberOfTrailingZeros(types) : 0;
+        byte[] template = this.templates[type];
+        if (template == null || template.length < size) {
+            template = new byte[Math.max(size, template != null ? 2 * template.length : 0)];
+            if (template.length >= 5) {
+                template[3] = 1;
+                template[4] = (byte) (0x60 | type);
+            }
+            this.templates[type] = template;
+        }
+        return ByteBuffer.wrap(template, 0, size).slice();
+    }
+
+}
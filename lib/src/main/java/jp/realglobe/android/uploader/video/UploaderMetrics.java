@@ -0,0 +1,136 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import android.support.annotation.NonNull;
+
+/**
+ * アップロードの統計情報。
+ * 取得した時点の値で、後から変わらない
+ */
+public final class UploaderMetrics {
+
+    /**
+     * 動いていないときの値
+     */
+    public static final UploaderMetrics EMPTY = new UploaderMetrics(0, 0L, 0L, 0L, 0L, 0L, 0L, 0L);
+
+    private final int streams;
+    private final long capacity;
+    private final long queuedSize;
+    private final long bitrate;
+    private final long inputSize;
+    private final long drainedSize;
+    private final long droppedSize;
+    private final long clears;
+
+    UploaderMetrics(int streams, long capacity, long queuedSize, long bitrate, long inputSize, long drainedSize, long droppedSize, long clears) {
+        this.streams = streams;
+        this.capacity = capacity;
+        this.queuedSize = queuedSize;
+        this.bitrate = bitrate;
+        this.inputSize = inputSize;
+        this.drainedSize = drainedSize;
+        this.droppedSize = droppedSize;
+        this.clears = clears;
+    }
+
+    /**
+     * @return 集計した動いているアップロードの数
+     */
+    public int getStreams() {
+        return this.streams;
+    }
+
+    /**
+     * @return バッファサイズ
+     */
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return 溜まっているデータのバイト数
+     */
+    public long getQueuedSize() {
+        return this.queuedSize;
+    }
+
+    /**
+     * @return 見積もった入力のビットレート（bps）
+     */
+    public long getBitrate() {
+        return this.bitrate;
+    }
+
+    /**
+     * @return 受け取ったデータのバイト数
+     */
+    public long getInputSize() {
+        return this.inputSize;
+    }
+
+    /**
+     * @return FFmpeg に渡したデータのバイト数
+     */
+    public long getDrainedSize() {
+        return this.drainedSize;
+    }
+
+    /**
+     * @return バッファのクリアで捨てたデータのバイト数
+     */
+    public long getDroppedSize() {
+        return this.droppedSize;
+    }
+
+    /**
+     * @return バッファをクリアした回数
+     */
+    public long getClears() {
+        return this.clears;
+    }
+
+    /**
+     * @param other 足す統計情報
+     * @return 足し合わせた統計情報
+     */
+    @NonNull
+    public UploaderMetrics plus(@NonNull UploaderMetrics other) {
+        return new UploaderMetrics(
+                this.streams + other.streams,
+                this.capacity + other.capacity,
+                this.queuedSize + other.queuedSize,
+                this.bitrate + other.bitrate,
+                this.inputSize + other.inputSize,
+                this.drainedSize + other.drainedSize,
+                this.droppedSize + other.droppedSize,
+                this.clears + other.clears);
+    }
+
+    @Override
+    public String toString() {
+        return "{streams=" + this.streams
+                + ", queued=" + this.queuedSize + "/" + this.capacity
+                + ", bitrate=" + this.bitrate
+                + ", input=" + this.inputSize
+                + ", drained=" + this.drainedSize
+                + ", dropped=" + this.droppedSize
+                + ", clears=" + this.clears + "}";
+    }
+
+}
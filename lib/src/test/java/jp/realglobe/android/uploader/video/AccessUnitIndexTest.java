@@ -0,0 +1,147 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.android.uploader.video;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AccessUnitIndexTest {
+
+    private static final int GOP = 10;
+    private static final int FRAMES = 95;
+    private static final double FRAME_RATE = 30;
+
+    private File path;
+    private File sidecar;
+    private SyntheticH264 video;
+
+    @Before
+    public void setUp() throws IOException {
+        this.path = File.createTempFile("video", ".h264");
+        this.sidecar = AccessUnitIndex.getSidecar(this.path);
+        this.video = new SyntheticH264().addFrames(GOP, FRAMES, 50);
+        this.video.write(this.path);
+    }
+
+    @After
+    public void tearDown() {
+        this.path.delete();
+        this.sidecar.delete();
+        new File(this.sidecar.getPath() + ".tmp").delete();
+    }
+
+    private void assertMatches(AccessUnitIndex index) {
+        assertEquals(FRAMES, index.size());
+        assertEquals((FRAMES + GOP - 1) / GOP, index.getKeyFrameCount());
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals(this.video.getOffset(i), index.getOffset(i));
+            assertEquals(this.video.getSize(i), index.getSize(i));
+            assertEquals(this.video.isKeyFrame(i), index.isKeyFrame(i));
+        }
+    }
+
+    @Test
+    public void buildsIndex() throws IOException {
+        assertMatches(AccessUnitIndex.build(this.path));
+    }
+
+    @Test
+    public void savesAndReusesSidecar() throws IOException {
+        assertMatches(AccessUnitIndex.open(this.path));
+        assertTrue(this.sidecar.exists());
+        assertFalse(new File(this.sidecar.getPath() + ".tmp").exists());
+
+        assertMatches(AccessUnitIndex.load(this.sidecar, this.path));
+        assertMatches(AccessUnitIndex.open(this.path));
+    }
+
+    @Test
+    public void ignoresStaleSidecar() throws IOException {
+        AccessUnitIndex.open(this.path);
+        assertTrue(this.path.setLastModified(this.path.lastModified() - 10_000));
+        assertNull(AccessUnitIndex.load(this.sidecar, this.path));
+        assertMatches(AccessUnitIndex.open(this.path));
+    }
+
+    @Test
+    public void rebuildsTruncatedSidecar() throws IOException {
+        AccessUnitIndex.open(this.path);
+        try (final RandomAccessFile file = new RandomAccessFile(this.sidecar, "rw")) {
+            file.setLength(file.length() / 2);
+        }
+        assertNull(AccessUnitIndex.load(this.sidecar, this.path));
+        assertMatches(AccessUnitIndex.open(this.path));
+    }
+
+    @Test
+    public void rebuildsGarbageSidecar() throws IOException {
+        try (final FileOutputStream output = new FileOutputStream(this.sidecar)) {
+            output.write(new byte[]{0x41, 0x55, 0x49, 0x58, 0, 0, 0, 1, 0x7f});
+        }
+        assertMatches(AccessUnitIndex.open(this.path));
+    }
+
+    @Test
+    public void findsFrameContainingOffset() throws IOException {
+        final AccessUnitIndex index = AccessUnitIndex.build(this.path);
+        assertEquals(0, index.findFrame(0));
+        assertEquals(7, index.findFrame(this.video.getOffset(7)));
+        assertEquals(7, index.findFrame(this.video.getOffset(8) - 1));
+        assertEquals(FRAMES - 1, index.findFrame(this.path.length() - 1));
+        assertEquals(-1, index.findFrame(this.path.length()));
+        assertEquals(-1, index.findFrame(-1));
+    }
+
+    @Test
+    public void findsKeyFrames() throws IOException {
+        final AccessUnitIndex index = AccessUnitIndex.build(this.path);
+        assertEquals(0, index.findKeyFrame(0));
+        assertEquals(20, index.findKeyFrame(20));
+        assertEquals(20, index.findKeyFrame(29));
+        assertEquals(90, index.findKeyFrame(FRAMES - 1));
+    }
+
+    @Test
+    public void findsKeyFrameAtTime() throws IOException {
+        final AccessUnitIndex index = AccessUnitIndex.build(this.path);
+        // 1.5 秒は 45 フレーム目
+        assertEquals(40, index.findKeyFrameAt(1_500, FRAME_RATE));
+        assertEquals(0, index.findKeyFrameAt(0, FRAME_RATE));
+        assertEquals(90, index.findKeyFrameAt(60_000, FRAME_RATE));
+        assertEquals(1_000, AccessUnitIndex.getTime(30, FRAME_RATE));
+    }
+
+    @Test
+    public void findsKeyFrameForLastDuration() throws IOException {
+        final AccessUnitIndex index = AccessUnitIndex.build(this.path);
+        // 最後の 1 秒（30 フレーム）は 65 フレーム目から。それを含む一番近いキーフレームは 60
+        assertEquals(60, index.findKeyFrameForLast(1_000, FRAME_RATE));
+        assertEquals(90, index.findKeyFrameForLast(100, FRAME_RATE));
+        assertEquals(0, index.findKeyFrameForLast(60_000, FRAME_RATE));
+    }
+
+}
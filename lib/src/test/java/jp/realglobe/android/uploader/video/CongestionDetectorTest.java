@@ -0,0 +1,134 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+
+package jp.realglobe.android.uploader.video;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CongestionDetectorTest {
+
+    private static final long BITRATE = 1_000_000;
+    private static final long CAPACITY = 1_000;
+
+    private CongestionDetector detector;
+
+    @Before
+    public void setUp() {
+        this.detector = new CongestionDetector();
+    }
+
+    /**
+     * 書き込みが入力に追いついている状態で、バッファの埋まり具合だけを変えて判定する
+     */
+    private CongestionEvent evaluate(double fill) {
+        return this.detector.evaluate(BITRATE, BITRATE, (long) (fill * CAPACITY), CAPACITY);
+    }
+
+    @Test
+    public void staysOkWhenEmpty() {
+        assertNull(evaluate(0));
+        assertNull(evaluate(0.3));
+    }
+
+    @Test
+    public void escalatesImmediately() {
+        final CongestionEvent warn = evaluate(0.4);
+        assertNotNull(warn);
+        assertEquals(CongestionEvent.Level.WARN, warn.getLevel());
+
+        final CongestionEvent critical = evaluate(0.8);
+        assertNotNull(critical);
+        assertEquals(CongestionEvent.Level.CRITICAL, critical.getLevel());
+    }
+
+    @Test
+    public void holdsCriticalAboveExitThreshold() {
+        assertEquals(CongestionEvent.Level.CRITICAL, evaluate(0.8).getLevel());
+        // 悪化の閾値より低くても、回復の閾値より高ければ留まる
+        for (int i = 0; i < 10; i++) {
+            assertNull(evaluate(0.6));
+        }
+    }
+
+    @Test
+    public void recoversFromCriticalToWarnAfterConsecutiveEvaluations() {
+        assertEquals(CongestionEvent.Level.CRITICAL, evaluate(0.8).getLevel());
+        assertNull(evaluate(0.45));
+        assertNull(evaluate(0.45));
+        final CongestionEvent event = evaluate(0.45);
+        assertNotNull(event);
+        assertEquals(CongestionEvent.Level.WARN, event.getLevel());
+    }
+
+    @Test
+    public void recoveryRestartsWhenWorsened() {
+        assertEquals(CongestionEvent.Level.CRITICAL, evaluate(0.8).getLevel());
+        assertNull(evaluate(0.45));
+        assertNull(evaluate(0.45));
+        assertNull(evaluate(0.6));
+        assertNull(evaluate(0.45));
+        assertNull(evaluate(0.45));
+        assertEquals(CongestionEvent.Level.WARN, evaluate(0.45).getLevel());
+    }
+
+    @Test
+    public void holdsWarnAboveExitThresholdThenRecovers() {
+        assertEquals(CongestionEvent.Level.WARN, evaluate(0.4).getLevel());
+        for (int i = 0; i < 10; i++) {
+            assertNull(evaluate(0.2));
+        }
+        assertNull(evaluate(0.1));
+        assertNull(evaluate(0.1));
+        final CongestionEvent event = evaluate(0.1);
+        assertNotNull(event);
+        assertEquals(CongestionEvent.Level.OK, event.getLevel());
+    }
+
+    @Test
+    public void detectsSlowDrainWhileGrowing() {
+        assertNull(this.detector.evaluate(BITRATE, BITRATE, 100, CAPACITY));
+        final CongestionEvent warn = this.detector.evaluate(BITRATE, BITRATE * 9 / 10, 150, CAPACITY);
+        assertNotNull(warn);
+        assertEquals(CongestionEvent.Level.WARN, warn.getLevel());
+        final CongestionEvent critical = this.detector.evaluate(BITRATE, BITRATE / 2, 200, CAPACITY);
+        assertNotNull(critical);
+        assertEquals(CongestionEvent.Level.CRITICAL, critical.getLevel());
+    }
+
+    @Test
+    public void recommendationHasFloorWhenStalled() {
+        final CongestionEvent event = this.detector.evaluate(BITRATE, 0, 900, CAPACITY);
+        assertNotNull(event);
+        assertEquals(CongestionEvent.Level.CRITICAL, event.getLevel());
+        assertTrue(event.getRecommendedBitrate() > 0);
+        assertTrue(event.getRecommendedBitrate() <= BITRATE);
+    }
+
+    @Test
+    public void recommendationFollowsDrainBitrate() {
+        assertEquals(BITRATE, CongestionDetector.recommend(CongestionEvent.Level.OK, BITRATE, BITRATE / 2));
+        assertEquals(BITRATE / 2 * 85 / 100, CongestionDetector.recommend(CongestionEvent.Level.WARN, BITRATE, BITRATE / 2));
+        assertEquals(BITRATE / 2 * 60 / 100, CongestionDetector.recommend(CongestionEvent.Level.CRITICAL, BITRATE, BITRATE / 2));
+        assertEquals(BITRATE / 4, CongestionDetector.recommend(CongestionEvent.Level.CRITICAL, BITRATE, 0));
+    }
+
+}
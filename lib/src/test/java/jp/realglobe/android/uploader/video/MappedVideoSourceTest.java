@@ -0,0 +1,157 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.android.uploader.video;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedVideoSourceTest {
+
+    private File path;
+
+    @Before
+    public void setUp() throws IOException {
+        this.path = File.createTempFile("video", ".h264");
+    }
+
+    @After
+    public void tearDown() {
+        this.path.delete();
+    }
+
+    private static byte[] toBytes(ByteBuffer data) {
+        final byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    private void assertSplit(SyntheticH264 video, long windowSize) throws IOException {
+        video.write(this.path);
+        final byte[] bytes = video.toByteArray();
+        try (final MappedVideoSource source = new MappedVideoSource(this.path, windowSize)) {
+            assertEquals(bytes.length, source.size());
+            for (int i = 0; i < video.getFrameCount(); i++) {
+                assertEquals(video.getOffset(i), source.position());
+                final ByteBuffer data = source.next();
+                final int start = (int) video.getOffset(i);
+                assertTrue("frame " + i, Arrays.equals(Arrays.copyOfRange(bytes, start, start + video.getSize(i)), toBytes(data)));
+                assertEquals("frame " + i, video.isKeyFrame(i), source.isKeyFrame());
+            }
+            assertNull(source.next());
+        }
+    }
+
+    @Test
+    public void splitsAccessUnits() throws IOException {
+        assertSplit(new SyntheticH264().addFrames(5, 12, 100), MappedVideoSource.DEFAULT_WINDOW_SIZE);
+    }
+
+    @Test
+    public void keepsSlicesOfOneFrameTogether() throws IOException {
+        assertSplit(new SyntheticH264().addKeyFrame(50).addFrame(30, 3).addFrame(30, 2).addKeyFrame(50), MappedVideoSource.DEFAULT_WINDOW_SIZE);
+    }
+
+    @Test
+    public void splitsAcrossWindows() throws IOException {
+        // 一番大きいアクセスユニットよりは大きいが、ファイルよりはずっと小さい窓
+        assertSplit(new SyntheticH264().addFrames(4, 40, 200), 4096);
+    }
+
+    @Test
+    public void rejectsAccessUnitLargerThanWindow() throws IOException {
+        new SyntheticH264().addKeyFrame(5000).addFrame(10, 1).write(this.path);
+        try (final MappedVideoSource source = new MappedVideoSource(this.path, 1024)) {
+            source.next();
+            fail("access unit larger than window was accepted");
+        } catch (IOException e) {
+            // 期待通り
+        }
+    }
+
+    @Test
+    public void returnsReadOnlyData() throws IOException {
+        new SyntheticH264().addKeyFrame(10).write(this.path);
+        try (final MappedVideoSource source = new MappedVideoSource(this.path)) {
+            assertTrue(source.next().isReadOnly());
+        }
+    }
+
+    @Test
+    public void seeksToPreviousKeyFrame() throws IOException {
+        final SyntheticH264 video = new SyntheticH264().addFrames(5, 15, 100);
+        video.write(this.path);
+        try (final MappedVideoSource source = new MappedVideoSource(this.path)) {
+            // 8 フレーム目の途中からは 5 フレーム目のキーフレームに戻る
+            final long offset = video.getOffset(8) + 10;
+            assertEquals(video.getOffset(5), source.seekToKeyFrame(offset));
+            assertEquals(video.getOffset(5), source.position());
+            source.next();
+            assertTrue(source.isKeyFrame());
+
+            // キーフレームの先頭ちょうど
+            assertEquals(video.getOffset(10), source.seekToKeyFrame(video.getOffset(10)));
+            // キーフレームのパラメータセットの途中
+            assertEquals(video.getOffset(10), source.seekToKeyFrame(video.getOffset(10) + 6));
+            // ファイルの終わりより後
+            assertEquals(video.getOffset(10), source.seekToKeyFrame(source.size() + 100));
+        }
+    }
+
+    @Test
+    public void seeksForwardWhenNoPreviousKeyFrame() throws IOException {
+        final SyntheticH264 video = new SyntheticH264().addFrame(50, 1).addFrame(50, 1).addKeyFrame(80).addFrame(50, 1);
+        video.write(this.path);
+        try (final MappedVideoSource source = new MappedVideoSource(this.path)) {
+            assertEquals(video.getOffset(2), source.seekToKeyFrame(video.getOffset(1)));
+        }
+    }
+
+    @Test
+    public void reportsMissingKeyFrame() throws IOException {
+        new SyntheticH264().addFrame(50, 1).addFrame(50, 1).write(this.path);
+        try (final MappedVideoSource source = new MappedVideoSource(this.path)) {
+            source.next();
+            final long position = source.position();
+            assertEquals(-1, source.seekToKeyFrame(0));
+            assertEquals(position, source.position());
+        }
+    }
+
+    @Test
+    public void seekRejectsOutOfRange() throws IOException {
+        new SyntheticH264().addKeyFrame(10).write(this.path);
+        try (final MappedVideoSource source = new MappedVideoSource(this.path)) {
+            try {
+                source.seek(source.size() + 1);
+                fail("out of range position was accepted");
+            } catch (IllegalArgumentException e) {
+                // 期待通り
+            }
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+/*----------------------------------------------------------------------
+ * Copyright 2017 realglobe Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *----------------------------------------------------------------------*/
+package jp.realglobe.android.uploader.video;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 試験用の生の H264（Annex B 形式）を組み立てる。
+ * 中身は解釈できる映像ではなく、アクセスユニットの区切りに必要な NAL ユニットのヘッダだけを持つ
+ */
+final class SyntheticH264 {
+
+    private final ByteArrayOutputStream stream;
+    private final List<Long> offsets;
+    private final List<Boolean> keyFrames;
+
+    SyntheticH264() {
+        this.stream = new ByteArrayOutputStream();
+        this.offsets = new ArrayList<>();
+        this.keyFrames = new ArrayList<>();
+    }
+
+    /**
+     * SPS, PPS, IDR スライスからなるキーフレームを足す
+     *
+     * @param size スライスの中身のバイト数
+     */
+    SyntheticH264 addKeyFrame(int size) {
+        begin(true);
+        nal(MappedVideoSource.NAL_SPS, 0x42, 8, true);
+        nal(MappedVideoSource.NAL_PPS, 0xce, 4, false);
+        nal(MappedVideoSource.NAL_IDR, 0x88, size, false);
+        return this;
+    }
+
+    /**
+     * スライスが 1 つ以上の P フレームを足す
+     *
+     * @param size   スライスごとの中身のバイト数
+     * @param slices スライスの数
+     */
+    SyntheticH264 addFrame(int size, int slices) {
+        begin(false);
+        for (int i = 0; i < slices; i++) {
+            // first_mb_in_slice が 0 なら先頭ビットが 1、そうでなければ 0
+            nal(MappedVideoSource.NAL_SLICE, i == 0 ? 0x9a : 0x40, size, i == 0);
+        }
+        return this;
+    }
+
+    /**
+     * @param gop    キーフレームの間隔
+     * @param frames フレーム数
+     * @param size   スライスの中身のバイト数の基準
+     */
+    SyntheticH264 addFrames(int gop, int frames, int size) {
+        for (int i = 0; i < frames; i++) {
+            if (i % gop == 0) {
+                addKeyFrame(4 * size + i);
+            } else {
+                addFrame(size + i, 1);
+            }
+        }
+        return this;
+    }
+
+    private void begin(boolean keyFrame) {
+        this.offsets.add((long) this.stream.size());
+        this.keyFrames.add(keyFrame);
+    }
+
+    private void nal(int type, int first, int size, boolean longStartCode) {
+        if (longStartCode) {
+            this.stream.write(0);
+        }
+        this.stream.write(0);
+        this.stream.write(0);
+        this.stream.write(1);
+        this.stream.write(0x60 | type);
+        this.stream.write(first);
+        final byte[] body = new byte[size];
+        // スタートコードと紛らわしい並びにならない値で埋める
+        Arrays.fill(body, (byte) 0x55);
+        this.stream.write(body, 0, body.length);
+    }
+
+    byte[] toByteArray() {
+        return this.stream.toByteArray();
+    }
+
+    int getFrameCount() {
+        return this.offsets.size();
+    }
+
+    long getOffset(int frame) {
+        return this.offsets.get(frame);
+    }
+
+    int getSize(int frame) {
+        final long end = (frame + 1 < this.offsets.size()) ? this.offsets.get(frame + 1) : this.stream.size();
+        return (int) (end - this.offsets.get(frame));
+    }
+
+    boolean isKeyFrame(int frame) {
+        return this.keyFrames.get(frame);
+    }
+
+    File write(File path) throws IOException {
+        try (final FileOutputStream output = new FileOutputStream(path)) {
+            output.write(toByteArray());
+        }
+        return path;
+    }
+
+}